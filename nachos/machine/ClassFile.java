@@ -0,0 +1,405 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A minimal assembler for Java class files, just large enough for the classes
+ * that the processor generates for hot basic blocks. A class has a superclass
+ * and any number of methods, but no fields, interfaces, exception tables, or
+ * attributes other than <tt>Code</tt>. Classes are written with version 49.0,
+ * so their methods need no stack map frames.
+ */
+final class ClassFile {
+	/**
+	 * Start a new class.
+	 * 
+	 * @param name the internal name of the class, such as
+	 * <tt>nachos/machine/Foo</tt>.
+	 * @param superName the internal name of the superclass.
+	 */
+	ClassFile(String name, String superName) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+	}
+
+	/**
+	 * Return the index of a <tt>CONSTANT_Utf8</tt> entry, adding it if
+	 * necessary. Only ASCII strings are supported.
+	 * 
+	 * @param value the string.
+	 * @return the constant pool index.
+	 */
+	int utf8(String value) {
+		Integer index = constants.get("U" + value);
+		if (index != null)
+			return index.intValue();
+
+		pool.put1(1).put2(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			Lib.assertTrue(value.charAt(i) > 0 && value.charAt(i) < 0x80);
+			pool.put1(value.charAt(i));
+		}
+
+		return addConstant("U" + value, 1);
+	}
+
+	/**
+	 * Return the index of a <tt>CONSTANT_Class</tt> entry.
+	 * 
+	 * @param name the internal name of the class.
+	 * @return the constant pool index.
+	 */
+	int classRef(String name) {
+		Integer index = constants.get("C" + name);
+		if (index != null)
+			return index.intValue();
+
+		int nameIndex = utf8(name);
+		pool.put1(7).put2(nameIndex);
+		return addConstant("C" + name, 1);
+	}
+
+	/**
+	 * Return the index of a <tt>CONSTANT_Fieldref</tt> entry.
+	 * 
+	 * @param owner the internal name of the class declaring the field.
+	 * @param name the name of the field.
+	 * @param descriptor the type descriptor of the field.
+	 * @return the constant pool index.
+	 */
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(9, owner, name, descriptor);
+	}
+
+	/**
+	 * Return the index of a <tt>CONSTANT_Methodref</tt> entry.
+	 * 
+	 * @param owner the internal name of the class declaring the method.
+	 * @param name the name of the method.
+	 * @param descriptor the method descriptor.
+	 * @return the constant pool index.
+	 */
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(10, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name,
+			String descriptor) {
+		String key = "M" + tag + owner + "." + name + ":" + descriptor;
+		Integer index = constants.get(key);
+		if (index != null)
+			return index.intValue();
+
+		int classIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int typeIndex = utf8(descriptor);
+
+		pool.put1(12).put2(nameIndex).put2(typeIndex);
+		int nameAndType = addConstant("N" + name + ":" + descriptor, 1);
+
+		pool.put1(tag).put2(classIndex).put2(nameAndType);
+		return addConstant(key, 1);
+	}
+
+	private int intConstant(int value) {
+		Integer index = constants.get("I" + value);
+		if (index != null)
+			return index.intValue();
+
+		pool.put1(3).put4(value);
+		return addConstant("I" + value, 1);
+	}
+
+	private int longConstant(long value) {
+		Integer index = constants.get("J" + value);
+		if (index != null)
+			return index.intValue();
+
+		pool.put1(5).put4((int) (value >>> 32)).put4((int) value);
+		return addConstant("J" + value, 2);
+	}
+
+	private int addConstant(String key, int slots) {
+		int index = poolCount;
+		poolCount += slots;
+		Lib.assertTrue(poolCount <= 0xFFFF);
+
+		constants.put(key, Integer.valueOf(index));
+		return index;
+	}
+
+	/**
+	 * Add a method to this class.
+	 * 
+	 * @param access the method's access flags.
+	 * @param name the name of the method.
+	 * @param descriptor the method descriptor.
+	 * @return the method's code, to which its instructions are appended.
+	 */
+	Code addMethod(int access, String name, String descriptor) {
+		Code code = new Code(access, utf8(name), utf8(descriptor));
+		methods.add(code);
+		return code;
+	}
+
+	/**
+	 * Assemble this class.
+	 * 
+	 * @return the contents of the class file.
+	 */
+	byte[] toByteArray() {
+		int codeName = utf8("Code");
+
+		Bytes out = new Bytes();
+		out.put4(0xCAFEBABE).put2(0).put2(49);
+		out.put2(poolCount).put(pool);
+		out.put2(accPublic | accFinal | accSuper);
+		out.put2(thisClass).put2(superClass);
+		out.put2(0).put2(0);
+
+		out.put2(methods.size());
+		for (Code code : methods) {
+			code.resolve();
+
+			out.put2(code.access).put2(code.name).put2(code.descriptor);
+			out.put2(1).put2(codeName).put4(12 + code.bytes.length);
+			out.put2(code.maxStack).put2(code.maxLocals);
+			out.put4(code.bytes.length).put(code.bytes);
+			out.put2(0).put2(0);
+		}
+
+		out.put2(0);
+
+		byte[] result = new byte[out.length];
+		System.arraycopy(out.data, 0, result, 0, out.length);
+		return result;
+	}
+
+	/**
+	 * The body of one method. Operand stack and local variable limits are
+	 * declared by the caller rather than computed.
+	 */
+	final class Code {
+		private Code(int access, int name, int descriptor) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+		}
+
+		/**
+		 * Declare the operand stack depth and the number of local variable
+		 * slots that this method needs.
+		 * 
+		 * @param maxStack the maximum operand stack depth, in slots.
+		 * @param maxLocals the number of local variable slots.
+		 */
+		void limits(int maxStack, int maxLocals) {
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		/**
+		 * Append an instruction that has no operands.
+		 * 
+		 * @param opcode the opcode.
+		 */
+		void op(int opcode) {
+			bytes.put1(opcode);
+		}
+
+		/**
+		 * Append a load or store of a local variable.
+		 * 
+		 * @param opcode <tt>ILOAD</tt>, <tt>LLOAD</tt>, <tt>ALOAD</tt>,
+		 * <tt>ISTORE</tt>, <tt>LSTORE</tt>, or <tt>ASTORE</tt>.
+		 * @param local the local variable slot, less than 256.
+		 */
+		void local(int opcode, int local) {
+			Lib.assertTrue(local >= 0 && local < 256);
+			bytes.put1(opcode).put1(local);
+		}
+
+		/**
+		 * Append a field access or method invocation.
+		 * 
+		 * @param opcode <tt>GETFIELD</tt>, <tt>PUTFIELD</tt>,
+		 * <tt>INVOKEVIRTUAL</tt>, or <tt>INVOKESPECIAL</tt>.
+		 * @param member the constant pool index of the field or method.
+		 */
+		void member(int opcode, int member) {
+			bytes.put1(opcode).put2(member);
+		}
+
+		/**
+		 * Append the shortest instruction that pushes an <tt>int</tt>
+		 * constant.
+		 * 
+		 * @param value the constant.
+		 */
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5)
+				bytes.put1(ICONST_0 + value);
+			else if (value == (byte) value)
+				bytes.put1(BIPUSH).put1(value);
+			else if (value == (short) value)
+				bytes.put1(SIPUSH).put2(value);
+			else
+				bytes.put1(LDC_W).put2(intConstant(value));
+		}
+
+		/**
+		 * Append the shortest instruction that pushes a <tt>long</tt>
+		 * constant.
+		 * 
+		 * @param value the constant.
+		 */
+		void pushLong(long value) {
+			if (value == 0 || value == 1)
+				bytes.put1(LCONST_0 + (int) value);
+			else
+				bytes.put1(LDC2_W).put2(longConstant(value));
+		}
+
+		/**
+		 * Return a new label, not yet bound to a position.
+		 * 
+		 * @return the label.
+		 */
+		Label newLabel() {
+			return new Label();
+		}
+
+		/**
+		 * Bind a label to the next instruction appended.
+		 * 
+		 * @param label the label.
+		 */
+		void mark(Label label) {
+			Lib.assertTrue(label.position < 0);
+			label.position = bytes.length;
+		}
+
+		/**
+		 * Append a conditional or unconditional branch to a label.
+		 * 
+		 * @param opcode the branch opcode, such as <tt>IFEQ</tt> or
+		 * <tt>GOTO</tt>.
+		 * @param target the label to branch to.
+		 */
+		void jump(int opcode, Label target) {
+			branchPositions.add(Integer.valueOf(bytes.length));
+			branchTargets.add(target);
+			bytes.put1(opcode).put2(0);
+		}
+
+		private void resolve() {
+			for (int i = 0; i < branchPositions.size(); i++) {
+				int at = branchPositions.get(i).intValue();
+				Label target = branchTargets.get(i);
+				Lib.assertTrue(target.position >= 0);
+
+				int offset = target.position - at;
+				Lib.assertTrue(offset == (short) offset);
+				bytes.data[at + 1] = (byte) (offset >> 8);
+				bytes.data[at + 2] = (byte) offset;
+			}
+
+			branchPositions.clear();
+			branchTargets.clear();
+		}
+
+		private final int access, name, descriptor;
+
+		private int maxStack = 0, maxLocals = 0;
+
+		private Bytes bytes = new Bytes();
+
+		private ArrayList<Integer> branchPositions = new ArrayList<Integer>();
+
+		private ArrayList<Label> branchTargets = new ArrayList<Label>();
+	}
+
+	/** A position in a method's code. */
+	static final class Label {
+		private int position = -1;
+	}
+
+	/** A growable big-endian byte buffer. */
+	private static final class Bytes {
+		Bytes put1(int value) {
+			ensure(1);
+			data[length++] = (byte) value;
+			return this;
+		}
+
+		Bytes put2(int value) {
+			ensure(2);
+			data[length++] = (byte) (value >> 8);
+			data[length++] = (byte) value;
+			return this;
+		}
+
+		Bytes put4(int value) {
+			ensure(4);
+			data[length++] = (byte) (value >> 24);
+			data[length++] = (byte) (value >> 16);
+			data[length++] = (byte) (value >> 8);
+			data[length++] = (byte) value;
+			return this;
+		}
+
+		Bytes put(Bytes bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes.data, 0, data, length, bytes.length);
+			length += bytes.length;
+			return this;
+		}
+
+		private void ensure(int count) {
+			if (length + count > data.length) {
+				byte[] larger = new byte[Math.max(data.length * 2, length
+						+ count)];
+				System.arraycopy(data, 0, larger, 0, length);
+				data = larger;
+			}
+		}
+
+		byte[] data = new byte[256];
+
+		int length = 0;
+	}
+
+	private final int thisClass, superClass;
+
+	private Bytes pool = new Bytes();
+
+	private int poolCount = 1;
+
+	private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+	private ArrayList<Code> methods = new ArrayList<Code>();
+
+	static final int accPublic = 0x0001, accFinal = 0x0010,
+			accSuper = 0x0020;
+
+	static final int ICONST_0 = 0x03, LCONST_0 = 0x09, BIPUSH = 0x10,
+			SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+
+	static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, ISTORE = 0x36,
+			LSTORE = 0x37, ASTORE = 0x3A, IALOAD = 0x2E, IASTORE = 0x4F;
+
+	static final int IADD = 0x60, LADD = 0x61, LSUB = 0x65, LMUL = 0x69,
+			LSHL = 0x79, LSHR = 0x7B, IUSHR = 0x7C, LUSHR = 0x7D,
+			IAND = 0x7E, LAND = 0x7F, IOR = 0x80, LOR = 0x81, LXOR = 0x83,
+			I2L = 0x85, L2I = 0x88, I2B = 0x91, I2S = 0x93, LCMP = 0x94;
+
+	static final int IFEQ = 0x99, IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C,
+			IFGT = 0x9D, IFLE = 0x9E, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0,
+			GOTO = 0xA7, IRETURN = 0xAC, RETURN = 0xB1;
+
+	static final int GETFIELD = 0xB4, PUTFIELD = 0xB5, INVOKEVIRTUAL = 0xB6,
+			INVOKESPECIAL = 0xB7;
+}
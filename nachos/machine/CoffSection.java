@@ -178,7 +178,6 @@ public class CoffSection {
 		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
 		int pageSize = Processor.pageSize;
-		byte[] memory = Machine.processor().getMemory();
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
 		int initlen;
@@ -190,10 +189,22 @@ public class CoffSection {
 		else
 			initlen = pageSize;
 
-		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+		if (Machine.processor().hasMemoryArray()) {
+			byte[] memory = Machine.processor().getMemory();
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+			if (initlen > 0)
+				Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+
+			Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		}
+		else {
+			byte[] page = new byte[pageSize];
+
+			if (initlen > 0)
+				Lib.strictReadFile(file, faddr, page, 0, initlen);
+
+			Machine.processor().writeMemory(paddr, page, 0, pageSize);
+		}
 	}
 
 	/** The COFF object to which this section belongs. */
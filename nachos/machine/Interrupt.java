@@ -4,9 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +41,14 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * By default simulated time runs as fast as the host allows. If
+ * <tt>Interrupt.ticksPerSecond</tt> is set, the simulation is instead paced to
+ * that rate: before invoking the handlers for an interrupt, the controller
+ * sleeps until the matching wall-clock time. Devices that talk to the outside
+ * world, such as the console and the network link, then see the same latency
+ * whatever the speed of the host.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +63,12 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[initialQueueSize];
+
+		double ticksPerSecond = Config.getDouble("Interrupt.ticksPerSecond", 0);
+		Lib.assertTrue(ticksPerSecond >= 0);
+		if (ticksPerSecond > 0)
+			nanosPerTick = 1e9 / ticksPerSecond;
 	}
 
 	/**
@@ -110,6 +126,32 @@ public final class Interrupt {
 		return enabled;
 	}
 
+	/**
+	 * Advance simulated time to the earliest pending interrupt, and invoke
+	 * every interrupt that is then due. A kernel calls this, with interrupts
+	 * disabled, when no thread is ready to run, instead of spinning until the
+	 * interrupt falls due. The skipped time is counted as idle time. Does
+	 * nothing if no interrupt is pending.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (anyPosted)
+			schedulePosted();
+
+		if (numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+		long skip = pending[0].time - stats.totalTicks;
+		if (skip > 0) {
+			stats.idleTicks += skip;
+			stats.totalTicks += skip;
+		}
+
+		checkIfDue();
+	}
+
 	/**
 	 * Tests whether interrupts are disabled.
 	 * 
@@ -120,37 +162,83 @@ public final class Interrupt {
 	}
 
 	private void schedule(long when, String type, Runnable handler) {
-		Lib.assertTrue(when > 0);
+		PendingInterrupt toOccur = allocate(type, handler);
+		toOccur.reschedule(when);
+	}
 
-		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	private PendingInterrupt createInterrupt(String type, Runnable handler) {
+		PendingInterrupt toOccur = new PendingInterrupt();
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.persistent = true;
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		return toOccur;
+	}
 
-		pending.add(toOccur);
+	/**
+	 * Schedule the interrupts that host threads have posted since the last
+	 * call.
+	 */
+	private void schedulePosted() {
+		anyPosted = false;
+
+		PendingInterrupt toOccur;
+		while ((toOccur = posted.poll()) != null)
+			toOccur.reschedule(toOccur.postDelay);
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
+		Lib.assertTrue(count >= 0);
+
+		if (count == 0)
+			return;
+
 		Stats stats = privilege.stats;
 
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += Stats.KernelTick * (long) count;
+			stats.totalTicks += Stats.KernelTick * (long) count;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += Stats.UserTick * (long) count;
+			stats.totalTicks += Stats.UserTick * (long) count;
 		}
 
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
+		if (anyPosted)
+			schedulePosted();
+
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	/**
+	 * Return the number of ticks until the earliest pending interrupt is due.
+	 * Interrupts posted by host threads count as due, since they are
+	 * scheduled at the next tick.
+	 * 
+	 * @return the number of ticks until the next interrupt, <tt>0</tt> if one
+	 * is already due, or <tt>Long.MAX_VALUE</tt> if none are pending.
+	 */
+	private long ticksUntilDue() {
+		if (anyPosted)
+			return 0;
+
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		long time = pending[0].time;
+
+		return Math.max(time - privilege.stats.totalTicks, 0);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,18 +247,19 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending[0].time > time)
 			return;
 
+		if (nanosPerTick > 0)
+			pace(time);
+
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pending[0].time <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -179,19 +268,107 @@ public final class Interrupt {
 
 			Lib.debug(dbgInt, "  " + next.type);
 
-			next.handler.run();
+			if (Trace.test(Trace.eventInterrupt))
+				Trace.record(Trace.eventInterrupt, Trace.intern(next.type), 1,
+						(int) next.time);
+
+			Runnable handler = next.handler;
+			if (!next.persistent)
+				release(next);
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Write the pending interrupts to a machine snapshot. Handlers are kernel
+	 * objects and cannot be saved, so only the type of each is recorded, and
+	 * how many ticks remain until it is due.
+	 * 
+	 * @param out the snapshot stream.
+	 * @exception IOException if the snapshot cannot be written.
+	 */
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		out.writeInt(numPending);
+		for (PendingInterrupt toOccur : sortedPending()) {
+			out.writeLong(toOccur.time - privilege.stats.totalTicks);
+			out.writeUTF(toOccur.type);
+		}
+	}
+
+	/**
+	 * Test whether the pending interrupts in a machine snapshot are complete,
+	 * and skip past them.
+	 * 
+	 * @param in the snapshot, positioned at the pending interrupts.
+	 * @return <tt>true</tt> if they can be restored.
+	 */
+	static boolean canRestoreSnapshot(ByteBuffer in) {
+		int count = in.getInt();
+		if (count < 0)
+			return false;
+
+		for (int i = 0; i < count; i++) {
+			if (in.getLong() <= 0)
+				return false;
+
+			int length = in.getShort() & 0xFFFF;
+			if (in.remaining() < length)
+				return false;
+			in.position(in.position() + length);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Restore the pending interrupts from a machine snapshot. Each saved
+	 * interrupt is matched, in order, with a currently pending interrupt of
+	 * the same type, which is rescheduled to be due the same number of ticks
+	 * from now. Simulated time itself is not restored, since kernels keep
+	 * absolute times of their own, such as when sleeping threads wake up.
+	 * Interrupts that are not matched are left alone.
+	 * 
+	 * @param in the snapshot, positioned at the pending interrupts.
+	 */
+	void readSnapshot(ByteBuffer in) {
+		ArrayList<PendingInterrupt> current = new ArrayList<PendingInterrupt>(
+				Arrays.asList(sortedPending()));
+		numPending = 0;
+
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			long delay = in.getLong();
+			String type = readUTF(in);
+
+			for (PendingInterrupt toOccur : current) {
+				if (toOccur.type.equals(type)) {
+					current.remove(toOccur);
+					toOccur.time = privilege.stats.totalTicks + delay;
+					enqueue(toOccur);
+					break;
+				}
+			}
+		}
+
+		for (PendingInterrupt toOccur : current)
+			enqueue(toOccur);
+	}
+
+	private static String readUTF(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+
+		return Lib.bytesToString(bytes, 0, bytes.length);
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		for (PendingInterrupt toOccur : sortedPending()) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,25 +376,206 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * Sleep until the wall-clock time that corresponds to the specified
+	 * simulated time. If the simulation has fallen too far behind, because the
+	 * host is too slow for the requested rate, the clocks are realigned rather
+	 * than letting the simulation run flat out to catch up.
+	 */
+	private void pace(long time) {
+		long now = System.nanoTime();
+
+		if (paceStartTicks < 0 || time < paceStartTicks) {
+			paceStartTicks = time;
+			paceStartNanos = now;
+			return;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+		long target = paceStartNanos
+				+ (long) ((time - paceStartTicks) * nanosPerTick);
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
+		if (target > now) {
+			long delay = target - now;
+			try {
+				Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+			}
+			catch (InterruptedException e) {
+			}
+		}
+		else if (now - target > maxPaceLag) {
+			paceStartTicks = time;
+			paceStartNanos = now;
+		}
+	}
+
+	/**
+	 * Take a pending interrupt record from the free list, or allocate one if
+	 * the list is empty.
+	 */
+	private PendingInterrupt allocate(String type, Runnable handler) {
+		PendingInterrupt toOccur = free;
+		if (toOccur != null)
+			free = toOccur.nextFree;
+		else
+			toOccur = new PendingInterrupt();
+
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.nextFree = null;
+
+		return toOccur;
+	}
+
+	private void release(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.nextFree = free;
+		free = toOccur;
+	}
+
+	private void enqueue(PendingInterrupt toOccur) {
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, pending.length * 2);
+
+		siftUp(numPending++, toOccur);
+	}
+
+	private PendingInterrupt removeFirst() {
+		PendingInterrupt first = pending[0];
+		remove(first);
+		return first;
+	}
+
+	private void remove(PendingInterrupt toOccur) {
+		int index = toOccur.index;
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		if (last != toOccur) {
+			siftDown(index, last);
+			if (last.index == index)
+				siftUp(index, last);
+		}
+
+		toOccur.index = -1;
+	}
+
+	/**
+	 * Move <i>toOccur</i> up from heap slot <i>index</i> until its parent is
+	 * due no later than it.
+	 */
+	private void siftUp(int index, PendingInterrupt toOccur) {
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (!toOccur.before(pending[parent]))
+				break;
+
+			place(index, pending[parent]);
+			index = parent;
+		}
+
+		place(index, toOccur);
+	}
+
+	/**
+	 * Move <i>toOccur</i> down from heap slot <i>index</i> until both of its
+	 * children are due no earlier than it.
+	 */
+	private void siftDown(int index, PendingInterrupt toOccur) {
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= numPending)
+				break;
+
+			if (child + 1 < numPending && pending[child + 1].before(pending[child]))
+				child++;
+
+			if (!pending[child].before(toOccur))
+				break;
+
+			place(index, pending[child]);
+			index = child;
+		}
+
+		place(index, toOccur);
+	}
+
+	private void place(int index, PendingInterrupt toOccur) {
+		pending[index] = toOccur;
+		toOccur.index = index;
+	}
+
+	/**
+	 * Return the pending interrupts in the order they are due.
+	 */
+	private PendingInterrupt[] sortedPending() {
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private class PendingInterrupt implements Comparable<PendingInterrupt>,
+			Privilege.InterruptHandle {
+		/**
+		 * Schedule this interrupt <i>when</i> ticks from now, moving it if it
+		 * is already pending. Interrupts are numbered in scheduling order, so
+		 * interrupts due at the same time run in the order they were
+		 * scheduled.
+		 */
+		public void reschedule(long when) {
+			Lib.assertTrue(when > 0);
+
+			if (index >= 0)
+				remove(this);
+
+			time = privilege.stats.totalTicks + when;
+			id = numPendingInterruptsCreated++;
+
+			Lib.debug(dbgInt, "Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+			if (Trace.test(Trace.eventInterrupt))
+				Trace.record(Trace.eventInterrupt, Trace.intern(type), 0,
+						(int) time);
+
+			enqueue(this);
+		}
+
+		public boolean cancel() {
+			if (index < 0)
+				return false;
+
+			Lib.debug(dbgInt, "Canceling the " + type + " interrupt handler");
+
+			remove(this);
+			return true;
+		}
+
+		public boolean isPending() {
+			return index >= 0;
+		}
+
+		public void post(long when) {
+			Lib.assertTrue(when > 0);
+
+			postDelay = when;
+			posted.add(this);
+			anyPosted = true;
+		}
+
+		/**
+		 * Test whether this interrupt runs before another one: it is due
+		 * earlier, or at the same time but was scheduled first.
+		 */
+		boolean before(PendingInterrupt toOccur) {
+			return time < toOccur.time
+					|| (time == toOccur.time && id < toOccur.id);
+		}
+
+		public int compareTo(PendingInterrupt toOccur) {
+			if (before(toOccur))
 				return -1;
-			else if (id > toOccur.id)
+			else if (toOccur.before(this))
 				return 1;
 			else
 				return 0;
@@ -230,6 +588,22 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The slot of this record in the heap, or -1 if not queued. */
+		int index = -1;
+
+		/**
+		 * <tt>true</tt> if this record is a handle from
+		 * <tt>createInterrupt()</tt>, which outlives each firing and so is
+		 * never put on the free list.
+		 */
+		boolean persistent = false;
+
+		/** The delay requested by the last call to <tt>post()</tt>. */
+		volatile long postDelay;
+
+		/** The next record in the free list. */
+		PendingInterrupt nextFree;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +612,37 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * The pending interrupts, as a binary heap ordered by due time and then
+	 * by scheduling order. The first <tt>numPending</tt> slots are in use.
+	 */
+	private PendingInterrupt[] pending;
+
+	private int numPending = 0;
+
+	/** Fired interrupt records, kept for reuse by <tt>schedule()</tt>. */
+	private PendingInterrupt free = null;
+
+	/** Handles posted by host threads and not yet scheduled. */
+	private ConcurrentLinkedQueue<PendingInterrupt> posted =
+			new ConcurrentLinkedQueue<PendingInterrupt>();
+
+	/** <tt>true</tt> if <tt>posted</tt> may be nonempty. */
+	private volatile boolean anyPosted = false;
+
+	/** Wall-clock nanoseconds per tick, or 0 to run at full speed. */
+	private double nanosPerTick = 0;
+
+	/** The simulated time at which pacing was last aligned. */
+	private long paceStartTicks = -1;
+
+	/** The value of <tt>System.nanoTime()</tt> at that alignment. */
+	private long paceStartNanos;
+
+	/** How far behind the paced clock the simulation may fall, in ns. */
+	private static final long maxPaceLag = 100000000;
+
+	private static final int initialQueueSize = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -247,8 +651,21 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public Privilege.InterruptHandle createInterrupt(String type,
+				Runnable handler) {
+			return Interrupt.this.createInterrupt(type, handler);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long ticksUntilDue() {
+			return Interrupt.this.ticksUntilDue();
+		}
 	}
 }
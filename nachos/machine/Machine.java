@@ -5,7 +5,16 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.ag.*;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedAction;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -52,6 +61,7 @@ public final class Machine {
 		privilege.stats = stats;
 
 		securityManager.enable();
+		Trace.initialize(privilege);
 		createDevices();
 		checkUserClasses();
 
@@ -98,9 +108,141 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (processor != null)
+			processor.printProfile();
 		terminate();
 	}
 
+	/**
+	 * Save a snapshot of the simulated machine to the specified file: the
+	 * statistics other than simulated time, the pending interrupts, and the
+	 * processor's registers, current page table, and physical memory.
+	 * 
+	 * <p>
+	 * Kernel state, such as thread stacks and open files, lives in Java
+	 * objects and is not part of the snapshot; a kernel that restores one is
+	 * responsible for rebuilding its own state to match. Translation state
+	 * is not saved either, except for a flat page table, so no snapshot is
+	 * taken if the processor uses a TLB (with or without the page table
+	 * walker) or a page directory.
+	 * 
+	 * @param fileName the name of the snapshot file.
+	 * @return <tt>true</tt> if the snapshot was saved.
+	 */
+	public static boolean saveSnapshot(final String fileName) {
+		if (processor != null && !processor.canSnapshot())
+			return false;
+
+		Boolean result = (Boolean) privilege
+				.doPrivileged(new PrivilegedAction<Boolean>() {
+					public Boolean run() {
+						try {
+							DataOutputStream out = new DataOutputStream(
+									new BufferedOutputStream(
+											new FileOutputStream(fileName),
+											0x10000));
+
+							out.writeInt(snapshotMagic);
+							out.writeInt(snapshotVersion);
+							out.writeBoolean(processor != null);
+							if (processor != null)
+								processor.writeSnapshot(out);
+							stats.writeSnapshot(out);
+							interrupt.writeSnapshot(out);
+
+							out.close();
+							return Boolean.TRUE;
+						}
+						catch (IOException e) {
+							return Boolean.FALSE;
+						}
+					}
+				});
+
+		return result.booleanValue();
+	}
+
+	/**
+	 * Restore the simulated machine from a snapshot saved by
+	 * <tt>saveSnapshot()</tt> on an identically configured machine. The file
+	 * is memory-mapped and physical memory is copied from it in bulk.
+	 * 
+	 * <p>
+	 * Simulated time is not restored. Each interrupt pending in the snapshot
+	 * is matched with a currently pending interrupt of the same type, which
+	 * is rescheduled to be due as many ticks from now as it was when the
+	 * snapshot was saved. The page table is restored into the current page
+	 * table, which must have the same size, or installed as a new one if none
+	 * is set. The whole file is checked before anything is changed, and
+	 * nothing is changed if it is truncated or does not fit this machine, or
+	 * if the processor uses a TLB or a page directory.
+	 * 
+	 * @param fileName the name of the snapshot file.
+	 * @return <tt>true</tt> if the snapshot was restored.
+	 */
+	public static boolean restoreSnapshot(final String fileName) {
+		ByteBuffer in = (ByteBuffer) privilege
+				.doPrivileged(new PrivilegedAction<ByteBuffer>() {
+					public ByteBuffer run() {
+						try {
+							RandomAccessFile file = new RandomAccessFile(
+									fileName, "r");
+							ByteBuffer buffer = file.getChannel().map(
+									FileChannel.MapMode.READ_ONLY, 0,
+									file.length());
+							file.close();
+							return buffer;
+						}
+						catch (IOException e) {
+							return null;
+						}
+					}
+				});
+
+		if (in == null || !canRestoreSnapshot(in.duplicate()))
+			return false;
+
+		in.position(8);
+		if (in.get() != 0)
+			processor.readSnapshot(in);
+		stats.readSnapshot(in);
+		interrupt.readSnapshot(in);
+
+		return true;
+	}
+
+	/**
+	 * Test whether a snapshot is complete and fits this machine.
+	 * 
+	 * @param in the snapshot.
+	 * @return <tt>true</tt> if the snapshot can be restored.
+	 */
+	private static boolean canRestoreSnapshot(ByteBuffer in) {
+		try {
+			if (in.getInt() != snapshotMagic || in.getInt() != snapshotVersion)
+				return false;
+
+			boolean hasProcessor = in.get() != 0;
+			if (hasProcessor != (processor != null))
+				return false;
+
+			if (processor != null && !processor.canRestoreSnapshot(in))
+				return false;
+
+			if (in.remaining() < Stats.snapshotSize)
+				return false;
+			in.position(in.position() + Stats.snapshotSize);
+
+			return Interrupt.canRestoreSnapshot(in) && !in.hasRemaining();
+		}
+		catch (BufferUnderflowException e) {
+			return false;
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -433,6 +575,10 @@ public final class Machine {
 
 	private static Stats stats = new Stats();
 
+	private static final int snapshotMagic = 0x4E534E50;
+
+	private static final int snapshotVersion = 1;
+
 	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
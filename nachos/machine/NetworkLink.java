@@ -117,7 +117,10 @@ public class NetworkLink {
 			}
 		};
 
-		scheduleReceiveInterrupt();
+		receiveEvent = privilege.interrupt.createInterrupt("network recv",
+				receiveInterrupt);
+		sendEvent = privilege.interrupt.createInterrupt("network send",
+				sendInterrupt);
 
 		Thread receiveThread = new Thread(new Runnable() {
 			public void run() {
@@ -160,36 +163,26 @@ public class NetworkLink {
 		this.sendInterruptHandler = sendInterruptHandler;
 	}
 
-	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				receiveInterrupt);
-	}
-
 	private synchronized void receiveInterrupt() {
-		Lib.assertTrue(incomingPacket == null);
+		// receive() schedules this again once the kernel takes the last packet
+		if (incomingPacket != null || incomingBytes == null)
+			return;
 
-		if (incomingBytes != null) {
-			if (Machine.autoGrader().canReceivePacket(privilege)) {
-				try {
-					incomingPacket = new Packet(incomingBytes);
+		if (Machine.autoGrader().canReceivePacket(privilege)) {
+			try {
+				incomingPacket = new Packet(incomingBytes);
 
-					privilege.stats.numPacketsReceived++;
-				}
-				catch (MalformedPacketException e) {
-				}
+				privilege.stats.numPacketsReceived++;
+			}
+			catch (MalformedPacketException e) {
 			}
+		}
 
-			incomingBytes = null;
-			notify();
+		incomingBytes = null;
+		notify();
 
-			if (incomingPacket == null)
-				scheduleReceiveInterrupt();
-			else if (receiveInterruptHandler != null)
-				receiveInterruptHandler.run();
-		}
-		else {
-			scheduleReceiveInterrupt();
-		}
+		if (incomingPacket != null && receiveInterruptHandler != null)
+			receiveInterruptHandler.run();
 	}
 
 	/**
@@ -198,12 +191,15 @@ public class NetworkLink {
 	 * @return the next packet received, or <tt>null</tt> if no packet is
 	 * available.
 	 */
-	public Packet receive() {
+	public synchronized Packet receive() {
 		Packet p = incomingPacket;
 
 		if (incomingPacket != null) {
 			incomingPacket = null;
-			scheduleReceiveInterrupt();
+
+			// a packet arrived while the kernel held the last one
+			if (incomingBytes != null)
+				receiveEvent.reschedule(Stats.NetworkTime);
 		}
 
 		return p;
@@ -241,12 +237,13 @@ public class NetworkLink {
 			synchronized (this) {
 				incomingBytes = packetBytes;
 			}
+
+			receiveEvent.post(Stats.NetworkTime);
 		}
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				sendInterrupt);
+		sendEvent.reschedule(Stats.NetworkTime);
 	}
 
 	private void sendInterrupt() {
@@ -321,6 +318,10 @@ public class NetworkLink {
 
 	private Runnable sendInterrupt;
 
+	private Privilege.InterruptHandle receiveEvent;
+
+	private Privilege.InterruptHandle sendEvent;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
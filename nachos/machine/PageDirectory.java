@@ -0,0 +1,105 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.machine.*;
+
+/**
+ * A two-level page table, which the processor can walk directly in place of a
+ * flat <tt>TranslationEntry</tt> array (see
+ * <tt>Processor.setPageDirectory()</tt>).
+ *
+ * <p>
+ * The upper bits of a virtual page number select a slot in the directory, and
+ * the lower bits select an entry within the block of entries that slot points
+ * to. Blocks are allocated when the first page in their range is mapped and
+ * released when the last one is unmapped, so a sparse address space, such as
+ * one with a stack high in memory, only pays for the regions it uses.
+ */
+public final class PageDirectory {
+	/**
+	 * Allocate a new, empty page directory.
+	 */
+	public PageDirectory() {
+		directory = new TranslationEntry[directorySize][];
+		populations = new int[directorySize];
+	}
+
+	/**
+	 * Return the translation entry for the specified virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the entry mapping the page, or <tt>null</tt> if it is unmapped.
+	 */
+	public TranslationEntry get(int vpn) {
+		TranslationEntry[] block = directory[vpn >>> blockBits];
+		if (block == null)
+			return null;
+
+		return block[vpn & blockMask];
+	}
+
+	/**
+	 * Map the specified virtual page to a translation entry, or unmap it if
+	 * <i>entry</i> is <tt>null</tt>. The entry is stored by reference, so the
+	 * processor sees later changes to it and sets its used and dirty bits.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param entry the entry to map the page to, or <tt>null</tt>.
+	 */
+	public void set(int vpn, TranslationEntry entry) {
+		Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+
+		int slot = vpn >>> blockBits;
+		TranslationEntry[] block = directory[slot];
+
+		if (block == null) {
+			if (entry == null)
+				return;
+
+			block = directory[slot] = new TranslationEntry[blockSize];
+		}
+
+		TranslationEntry old = block[vpn & blockMask];
+		block[vpn & blockMask] = entry;
+
+		if (old == null && entry != null) {
+			populations[slot]++;
+		}
+		else if (old != null && entry == null) {
+			if (--populations[slot] == 0)
+				directory[slot] = null;
+		}
+	}
+
+	/**
+	 * Return the number of blocks of entries currently allocated.
+	 *
+	 * @return the number of allocated blocks.
+	 */
+	public int getNumBlocks() {
+		int count = 0;
+		for (int i = 0; i < directorySize; i++) {
+			if (directory[i] != null)
+				count++;
+		}
+
+		return count;
+	}
+
+	private TranslationEntry[][] directory;
+
+	/** The number of entries mapped in each block. */
+	private int[] populations;
+
+	/** Number of virtual page number bits resolved by a block. */
+	public static final int blockBits = 10;
+
+	/** Number of entries in a block. */
+	public static final int blockSize = 1 << blockBits;
+
+	private static final int blockMask = blockSize - 1;
+
+	/** Number of slots in the directory. */
+	public static final int directorySize = Processor.maxPages >>> blockBits;
+}
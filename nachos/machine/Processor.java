@@ -4,6 +4,26 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -43,12 +63,53 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		Lib.assertTrue(numPhysPages > 0
+				&& numPhysPages <= Integer.MAX_VALUE / pageSize);
+
+		allocateMemory(Config.getString("Processor.memory", "heap"));
+
+		if (Config.getBoolean("Processor.decodeCache", true))
+			decodeCache = new DecodedInstruction[numPhysPages][];
+		else
+			decodeCache = null;
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("block"))
+			blockCache = new BasicBlock[numPhysPages][];
+		else if (engine.equals("interpreter"))
+			blockCache = null;
+		else
+			Lib.assertNotReached("unknown Processor.engine " + engine);
+
+		traceInstructions = Trace.test(Trace.eventInstruction);
+		traceTranslations = Trace.test(Trace.eventTranslate);
+
+		hotBlockThreshold = Config.getInteger("Processor.hotBlockThreshold",
+				defaultHotBlockThreshold);
+
+		// translated code records no instructions or translations
+		if (blockCache == null || traceInstructions || traceTranslations
+				|| !findDefineHiddenClass())
+			hotBlockThreshold = 0;
+		usingQuantum = Config.getBoolean("Processor.quantum", false);
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler(Config.getInteger("Processor.profileTop",
+					defaultProfileTop));
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", defaultTLBSize);
+			tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0);
+			tlbSets = tlbSize / tlbWays;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			usingWalker = Config.getBoolean("Processor.pageTableWalker", false);
+			if (usingWalker)
+				walkSources = new TranslationEntry[tlbSize];
 		}
 		else {
 			translations = null;
@@ -91,6 +152,16 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// disassembly and per-tick traces are only printed one at a time
+		boolean tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble) || Lib.test(dbgInt);
+
+		if (blockCache != null && !tracing)
+			runBlocks(inst);
+
+		if (usingQuantum && !tracing)
+			runQuanta(inst);
+
 		while (true) {
 			try {
 				inst.run();
@@ -103,6 +174,225 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute instructions a quantum at a time. Never returns.
+	 * 
+	 * <p>
+	 * A quantum is the number of instructions that can run before the earliest
+	 * pending interrupt falls due. Its ticks are charged in one batch at the
+	 * end, so interrupts are delivered after exactly the same instruction as
+	 * with one tick per instruction.
+	 * 
+	 * @param inst the instruction state used to execute each instruction.
+	 */
+	private void runQuanta(Instruction inst) {
+		while (true) {
+			int quantum = quantum();
+			int executed = 0;
+
+			try {
+				while (executed < quantum) {
+					executed++;
+					inst.run();
+				}
+			}
+			catch (MipsException e) {
+				privilege.interrupt.tick(false, executed - 1);
+				e.handle();
+				executed = 1;
+			}
+
+			privilege.interrupt.tick(false, executed);
+		}
+	}
+
+	/**
+	 * Return the number of instructions that can run before the earliest
+	 * pending interrupt is due. Always at least one, since the reference
+	 * interpreter runs an instruction before every tick.
+	 * 
+	 * @return the number of instructions in the next quantum.
+	 */
+	private int quantum() {
+		long ticks = privilege.interrupt.ticksUntilDue();
+
+		if (ticks >= (long) maxQuantum * Stats.UserTick)
+			return maxQuantum;
+
+		return Math.max(Lib.divRoundUp((int) ticks, Stats.UserTick), 1);
+	}
+
+	/**
+	 * Execute instructions a basic block at a time. Never returns.
+	 * 
+	 * <p>
+	 * Each block is decoded once into a chain of handlers, one per instruction,
+	 * with every operand resolved. A block is translated once on entry, and
+	 * the ticks for all of its instructions are charged together when it ends.
+	 * If an instruction raises an exception, the instructions before it are
+	 * charged first, then the exception is handled, and then the faulting
+	 * instruction is charged, just as the reference interpreter would. A block
+	 * also stops early when the current quantum runs out, so interrupts are
+	 * delivered after exactly the same instruction as with the reference
+	 * interpreter. It stops after any access that makes the page table walker
+	 * refill the TLB, since the refill may have evicted the entry that
+	 * translated the block; the next instruction is then fetched through the
+	 * TLB, as the reference interpreter would fetch it.
+	 * 
+	 * <p>
+	 * Once a block has been entered <tt>Processor.hotBlockThreshold</tt> times
+	 * it is translated to a JVM class, and from then on runs as that class's
+	 * bytecode, which the JVM can compile to native code.
+	 * 
+	 * @param inst the instruction state used to execute each instruction.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			int quantum = quantum();
+			int executed = 0;
+			int start = registers[regPC];
+			BasicBlock block = null;
+			TranslatedBlock translated = null;
+
+			try {
+				int pc = start;
+				int paddr = translate(pc, 4, false);
+				block = getBlock(paddr, inst);
+				tlbRefilled = false;
+
+				if (block.translated == null && hotBlockThreshold > 0
+						&& ++block.executions == hotBlockThreshold)
+					block.translated = translateBlock(block);
+
+				// translated code runs whole blocks, from outside a delay slot
+				if (block.translated != null && block.length <= quantum
+						&& registers[regNextPC] == pc + 4) {
+					// the kernel may have rewritten this frame
+					if (!block.unchanged()) {
+						discardBlock(block);
+						continue;
+					}
+
+					translatedStart = block.paddr;
+					translatedEnd = block.paddr + block.length * 4;
+					translatedWritten = false;
+
+					translated = block.translated;
+					executed = translated.run();
+				}
+				else {
+					int length = Math.min(block.length, quantum);
+
+					for (int i = 0; i < length; i++) {
+						// a delay slot or an exception may have moved the PC
+						if (i > 0 && registers[regPC] != pc)
+							break;
+
+						// a refill may have evicted this block's TLB entry,
+						// so fetch the next instruction through the TLB
+						if (tlbRefilled)
+							break;
+
+						// the kernel may have rewritten this frame
+						DecodedInstruction decoded = block.instructions[i];
+						if (memory.getInt(paddr) != decoded.value) {
+							discardBlock(block);
+							break;
+						}
+
+						if (i > 0 && traceTranslations)
+							Trace.record(Trace.eventTranslate, pc, paddr, 0);
+
+						executed++;
+						if (traceInstructions)
+							Trace.record(Trace.eventInstruction, pc,
+									decoded.value, 0);
+						block.handlers[i].run();
+
+						pc += 4;
+						paddr += 4;
+					}
+				}
+
+				if (profiler != null)
+					profiler.block(start, block, executed);
+			}
+			catch (MipsException e) {
+				if (translated != null)
+					executed = translated.executed;
+
+				if (profiler != null && block != null)
+					profiler.block(start, block, executed);
+
+				if (executed > 0)
+					executed--;
+
+				privilege.interrupt.tick(false, executed);
+				e.handle();
+				executed = 1;
+			}
+
+			privilege.interrupt.tick(false, executed);
+		}
+	}
+
+	/**
+	 * Return the basic block starting at physical address <i>paddr</i>,
+	 * building it if it is not already cached.
+	 * 
+	 * @param paddr the word-aligned physical address of the first instruction.
+	 * @param inst the instruction state used by instructions that are left to
+	 * the reference interpreter.
+	 * @return the basic block.
+	 */
+	private BasicBlock getBlock(int paddr, Instruction inst) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) >> 2;
+
+		BasicBlock[] page = blockCache[ppn];
+		if (page == null) {
+			page = new BasicBlock[pageSize >> 2];
+			blockCache[ppn] = page;
+		}
+
+		BasicBlock block = page[index];
+		if (block == null) {
+			block = new BasicBlock(paddr, inst);
+			page[index] = block;
+		}
+
+		return block;
+	}
+
+	private void discardBlock(BasicBlock block) {
+		BasicBlock[] page = blockCache[block.paddr / pageSize];
+		if (page != null)
+			page[(block.paddr % pageSize) >> 2] = null;
+	}
+
+	/**
+	 * Attribute further user instructions and ticks to the named profile
+	 * context, typically one per user process. Does nothing unless
+	 * <tt>Processor.profile</tt> is enabled.
+	 * 
+	 * @param name the name of the context.
+	 * @param coff the executable running in the context, used to symbolize
+	 * addresses in the report, or <tt>null</tt>.
+	 */
+	public void setProfileContext(String name, Coff coff) {
+		if (profiler != null)
+			profiler.switchTo(name, coff);
+	}
+
+	/**
+	 * Print the hot spots recorded by the profiler for each context, if
+	 * <tt>Processor.profile</tt> is enabled. Called by <tt>Machine.halt()</tt>.
+	 */
+	public void printProfile() {
+		if (profiler != null)
+			profiler.print();
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -142,6 +432,11 @@ public final class Processor {
 	 * <tt>writeTLBEntry()</tt>.
 	 * 
 	 * <p>
+	 * A processor with a TLB may also have a page table walker (see
+	 * <tt>hasPageTableWalker()</tt>), in which case <tt>setPageTable()</tt> is
+	 * available as well.
+	 * 
+	 * <p>
 	 * Using a method associated with the wrong address translation mechanism
 	 * will result in an assertion failure.
 	 * 
@@ -151,15 +446,32 @@ public final class Processor {
 		return usingTLB;
 	}
 
+	/**
+	 * Test whether this processor refills its TLB in hardware.
+	 * 
+	 * <p>
+	 * If <tt>true</tt>, a TLB miss walks the page table registered with
+	 * <tt>setPageTable()</tt> or <tt>setPageDirectory()</tt>. A valid entry is
+	 * copied into the TLB and the access proceeds without involving the
+	 * kernel; the entry's used bit is set by the walk and its dirty bit on the
+	 * first write through the TLB. Only a missing or invalid entry raises an
+	 * exception: a page fault, or a TLB miss if no page table is registered.
+	 * 
+	 * @return <tt>true</tt> if this processor has a page table walker.
+	 */
+	public boolean hasPageTableWalker() {
+		return usingWalker;
+	}
+
 	/**
 	 * Get the current page table, set by the last call to setPageTable().
 	 * 
 	 * @return the current page table.
 	 */
 	public TranslationEntry[] getPageTable() {
-		Lib.assertTrue(!usingTLB);
+		Lib.assertTrue(!usingTLB || usingWalker);
 
-		return translations;
+		return usingTLB ? walkTable : translations;
 	}
 
 	/**
@@ -167,12 +479,51 @@ public final class Processor {
 	 * specified page table. The size of the current address space will be
 	 * determined from the length of the page table array.
 	 * 
+	 * <p>
+	 * With a page table walker, the table is only consulted on TLB misses;
+	 * entries already in the TLB remain in use.
+	 * 
 	 * @param pageTable the page table to use.
 	 */
 	public void setPageTable(TranslationEntry[] pageTable) {
-		Lib.assertTrue(!usingTLB);
+		Lib.assertTrue(!usingTLB || usingWalker);
+
+		if (usingTLB)
+			walkTable = pageTable;
+		else
+			this.translations = pageTable;
+		pageDirectory = null;
+	}
+
+	/**
+	 * Get the current page directory, set by the last call to
+	 * setPageDirectory().
+	 * 
+	 * @return the current page directory, or <tt>null</tt> if a flat page
+	 * table is in use.
+	 */
+	public PageDirectory getPageDirectory() {
+		Lib.assertTrue(!usingTLB || usingWalker);
 
-		this.translations = pageTable;
+		return pageDirectory;
+	}
+
+	/**
+	 * Set the page table pointer to a two-level page table. All further
+	 * address translations will walk the specified directory, so the address
+	 * space may use any virtual page below <tt>maxPages</tt>. This replaces
+	 * any page table set by <tt>setPageTable()</tt>.
+	 * 
+	 * @param pageDirectory the page directory to use.
+	 */
+	public void setPageDirectory(PageDirectory pageDirectory) {
+		Lib.assertTrue(!usingTLB || usingWalker);
+
+		if (usingTLB)
+			walkTable = null;
+		else
+			this.translations = null;
+		this.pageDirectory = pageDirectory;
 	}
 
 	/**
@@ -186,6 +537,59 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of ways in each set of this processor's TLB. A
+	 * virtual page can only be found in one of the entries of the set it
+	 * hashes to; see <tt>getTLBSet()</tt>. If the associativity equals
+	 * <tt>getTLBSize()</tt>, the TLB is fully associative.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the index of the first TLB entry of the set that the specified
+	 * virtual page maps to under the current address space identifier. The
+	 * set spans <tt>getTLBAssociativity()</tt> consecutive entries.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the first entry in the page's TLB set.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return tlbSetBase(vpn, asid);
+	}
+
+	/**
+	 * Return the current address space identifier.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Set the current address space identifier. Only TLB entries whose
+	 * <tt>asid</tt> field matches it are used for translation, so a kernel
+	 * that tags entries with a per-process identifier need not flush the TLB
+	 * on a context switch.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -203,8 +607,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * Within a set the location of an entry does not affect anything, but an
+	 * entry is only found if it is written to the set its virtual page and
+	 * address space identifier map to (see <tt>getTLBSet()</tt>). By default
+	 * the TLB is fully associative, so any location will do.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,6 +620,8 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		if (usingWalker)
+			walkSources[number] = null;
 	}
 
 	/**
@@ -226,16 +634,165 @@ public final class Processor {
 		return numPhysPages;
 	}
 
+	/**
+	 * Allocate physical memory. <tt>heap</tt> memory is an ordinary byte
+	 * array. <tt>direct</tt> memory lives outside the Java heap, so very large
+	 * memories add no garbage collection work. <tt>mapped</tt> memory is a
+	 * direct buffer mapped from the file named by
+	 * <tt>Processor.memoryFile</tt>.
+	 * 
+	 * @param kind the value of <tt>Processor.memory</tt>.
+	 */
+	private void allocateMemory(String kind) {
+		final int size = pageSize * numPhysPages;
+
+		if (kind.equals("heap")) {
+			mainMemory = new byte[size];
+			memory = ByteBuffer.wrap(mainMemory);
+		}
+		else if (kind.equals("direct")) {
+			mainMemory = null;
+			memory = ByteBuffer.allocateDirect(size);
+		}
+		else if (kind.equals("mapped")) {
+			final String fileName = Config.getString("Processor.memoryFile",
+					"nachos.mem");
+
+			mainMemory = null;
+			try {
+				memory = (ByteBuffer) privilege.doPrivileged(
+						new PrivilegedExceptionAction<ByteBuffer>() {
+							public ByteBuffer run() throws Exception {
+								RandomAccessFile file = new RandomAccessFile(
+										fileName, "rw");
+								file.setLength(size);
+								FileChannel channel = file.getChannel();
+								ByteBuffer buffer = channel.map(
+										FileChannel.MapMode.READ_WRITE, 0, size);
+								file.close();
+								return buffer;
+							}
+						});
+			}
+			catch (PrivilegedActionException e) {
+				Lib.assertNotReached("could not map " + fileName);
+			}
+		}
+		else {
+			Lib.assertNotReached("unknown Processor.memory " + kind);
+		}
+
+		memory.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Test whether physical memory is an ordinary Java byte array, in which
+	 * case <tt>getMemory()</tt> may be used.
+	 * 
+	 * @return <tt>true</tt> if physical memory is on the Java heap.
+	 */
+	public boolean hasMemoryArray() {
+		return mainMemory != null;
+	}
+
 	/**
 	 * Return a reference to the physical memory array. The size of this array
-	 * is <tt>pageSize * getNumPhysPages()</tt>.
+	 * is <tt>pageSize * getNumPhysPages()</tt>. Only available if
+	 * <tt>hasMemoryArray()</tt>; kernels that must work with any kind of
+	 * memory should use <tt>readMemory()</tt>, <tt>writeMemory()</tt>, and
+	 * <tt>fillMemory()</tt> instead.
 	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null,
+				"physical memory is not on the Java heap");
+
 		return mainMemory;
 	}
 
+	/**
+	 * Copy bytes out of physical memory.
+	 * 
+	 * @param paddr the first physical address to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void readMemory(int paddr, byte[] data, int offset, int length) {
+		checkPhysicalRange(paddr, length);
+
+		memory.position(paddr);
+		memory.get(data, offset, length);
+	}
+
+	/**
+	 * Copy bytes into physical memory.
+	 * 
+	 * @param paddr the first physical address to write.
+	 * @param data the array containing the data to copy.
+	 * @param offset the first byte to copy from the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void writeMemory(int paddr, byte[] data, int offset, int length) {
+		checkPhysicalRange(paddr, length);
+
+		memory.position(paddr);
+		memory.put(data, offset, length);
+	}
+
+	/**
+	 * Set a range of physical memory to a single value.
+	 * 
+	 * @param paddr the first physical address to write.
+	 * @param length the number of bytes to set.
+	 * @param value the value to store in each byte.
+	 */
+	public void fillMemory(int paddr, int length, byte value) {
+		checkPhysicalRange(paddr, length);
+
+		for (int i = 0; i < length; i++)
+			memory.put(paddr + i, value);
+	}
+
+	private void checkPhysicalRange(int paddr, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& length <= memory.capacity() - paddr);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory. As with
+	 * <tt>Lib.bytesToInt()</tt>, bytes and halfwords are sign-extended.
+	 */
+	private int readPhysical(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return memory.get(paddr);
+		case 2:
+			return memory.getShort(paddr);
+		default:
+			return memory.getInt(paddr);
+		}
+	}
+
+	/**
+	 * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to
+	 * physical memory.
+	 */
+	private void writePhysical(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			memory.put(paddr, (byte) value);
+			break;
+		case 2:
+			memory.putShort(paddr, (short) value);
+			break;
+		default:
+			memory.putInt(paddr, value);
+			break;
+		}
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -276,6 +833,81 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Hash a virtual page and address space identifier to a TLB set.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param asid the address space identifier.
+	 * @return the index of the first entry in the set.
+	 */
+	private int tlbSetBase(int vpn, int asid) {
+		if (tlbSets == 1)
+			return 0;
+
+		int hash = (vpn ^ (asid * 0x9E3779B1)) & 0x7FFFFFFF;
+		return (hash % tlbSets) * tlbWays;
+	}
+
+	/**
+	 * Look up a virtual page in the current page directory, if there is one,
+	 * or else in the specified flat page table.
+	 * 
+	 * @param table the flat page table, or <tt>null</tt>.
+	 * @param vpn the virtual page number.
+	 * @return the page's entry, or <tt>null</tt> if it is not mapped.
+	 */
+	private TranslationEntry pageTableEntry(TranslationEntry[] table, int vpn) {
+		if (pageDirectory != null)
+			return pageDirectory.get(vpn);
+		if (table == null || vpn >= table.length)
+			return null;
+
+		return table[vpn];
+	}
+
+	/**
+	 * Refill the TLB from the registered page table, as a hardware page table
+	 * walker would. The new entry goes into an invalid way of the page's set
+	 * if there is one, or else replaces the ways of the set in turn.
+	 * 
+	 * @param vpn the virtual page that missed in the TLB.
+	 * @param vaddr the virtual address being translated.
+	 * @return the index of the refilled TLB entry.
+	 * @exception MipsException if the page table entry is missing or invalid.
+	 */
+	private int walkPageTable(int vpn, int vaddr) throws MipsException {
+		TranslationEntry pte = pageTableEntry(walkTable, vpn);
+		if (pte == null || !pte.valid) {
+			privilege.stats.numPageFaults++;
+			Lib.debug(dbgProcessor, "\t\tpage fault");
+			throw trap(exceptionPageFault, vaddr);
+		}
+
+		pte.used = true;
+
+		int base = tlbSetBase(vpn, asid);
+		int slot = -1;
+		for (int i = base; i < base + tlbWays; i++) {
+			if (!translations[i].valid) {
+				slot = i;
+				break;
+			}
+		}
+		if (slot == -1) {
+			slot = base + walkVictim;
+			walkVictim = (walkVictim + 1) % tlbWays;
+		}
+
+		TranslationEntry entry = new TranslationEntry(pte);
+		entry.asid = asid;
+		translations[slot] = entry;
+		walkSources[slot] = pte;
+		tlbRefilled = true;
+
+		Lib.debug(dbgProcessor, "\t\twalked into TLB entry " + slot);
+		return slot;
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
@@ -297,7 +929,7 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw trap(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -305,53 +937,66 @@ public final class Processor {
 		int offset = offsetFromAddress(vaddr);
 
 		TranslationEntry entry = null;
+		int slot = -1;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
-			if (translations == null || vpn >= translations.length
-					|| translations[vpn] == null || !translations[vpn].valid) {
+			entry = pageTableEntry(translations, vpn);
+			if (entry == null || !entry.valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw trap(exceptionPageFault, vaddr);
 			}
-
-			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the entries of the set for a matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
+			int base = tlbSetBase(vpn, asid);
+			for (int i = base; i < base + tlbWays; i++) {
+				TranslationEntry candidate = translations[i];
+				if (candidate.valid && candidate.vpn == vpn
+						&& candidate.asid == asid) {
+					entry = candidate;
+					slot = i;
 					break;
 				}
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				if (walkTable == null && pageDirectory == null)
+					throw trap(exceptionTLBMiss, vaddr);
+
+				slot = walkPageTable(vpn, vaddr);
+				entry = translations[slot];
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw trap(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw trap(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
 		entry.used = true;
-		if (writing)
+		if (writing && !entry.dirty) {
 			entry.dirty = true;
+			if (usingWalker && walkSources[slot] != null)
+				walkSources[slot].dirty = true;
+		}
 
 		int paddr = (ppn * pageSize) + offset;
 
+		if (traceTranslations)
+			Trace.record(Trace.eventTranslate, vaddr, paddr, writing ? 1 : 0);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
@@ -373,8 +1018,7 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = readPhysical(translate(vaddr, size, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -400,48 +1044,279 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		writePhysical(paddr, size, value);
+
+		invalidateDecoded(paddr);
+
+		if (paddr >= translatedStart && paddr < translatedEnd)
+			translatedWritten = true;
 	}
 
 	/**
-	 * Complete the in progress delayed load and scheduled a new one.
+	 * Return the cached decoding of the instruction word <i>value</i> stored at
+	 * physical address <i>paddr</i>, decoding it and filling the cache if
+	 * necessary.
 	 * 
-	 * @param nextLoadTarget the target register of the new load.
-	 * @param nextLoadValue the value to be loaded into the new target.
-	 * @param nextLoadMask the mask specifying which bits in the new target are
-	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
-	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
-	 * written.
+	 * <p>
+	 * Entries are tagged with the raw instruction word they were decoded from,
+	 * so an entry left behind after its frame was reassigned, or after the
+	 * kernel wrote to physical memory directly, is never used for a different
+	 * instruction.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @param value the instruction word stored at <i>paddr</i>.
+	 * @return the decoded instruction.
 	 */
-	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
-			int nextLoadMask) {
-		// complete previous delayed load, if not modifying r0
-		if (loadTarget != 0) {
-			int savedBits = registers[loadTarget] & ~loadMask;
-			int newBits = loadValue & loadMask;
-			registers[loadTarget] = savedBits | newBits;
+	private DecodedInstruction getDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) >> 2;
+
+		DecodedInstruction[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize >> 2];
+			decodeCache[ppn] = page;
 		}
 
-		// schedule next load
-		loadTarget = nextLoadTarget;
-		loadValue = nextLoadValue;
-		loadMask = nextLoadMask;
+		DecodedInstruction decoded = page[index];
+		if (decoded == null) {
+			decoded = new DecodedInstruction();
+			decoded.decode(value);
+			page[index] = decoded;
+		}
+		else if (decoded.value != value) {
+			decoded.decode(value);
+		}
+
+		return decoded;
 	}
 
 	/**
-	 * Advance the PC to the next instruction.
-	 * 
-	 * <p>
-	 * Transfer the contents of the nextPC register into the PC register, and
-	 * then add 4 to the value in the nextPC register. Same as
-	 * <tt>advancePC(readRegister(regNextPC)+4)</tt>.
+	 * Drop the cached decoding of the word containing physical address
+	 * <i>paddr</i>. Called whenever a user store modifies physical memory.
 	 * 
-	 * <p>
-	 * Use after handling a syscall exception so that the processor will move on
-	 * to the next instruction.
+	 * @param paddr the physical address that was written.
 	 */
-	public void advancePC() {
-		advancePC(registers[regNextPC] + 4);
+	private void invalidateDecoded(int paddr) {
+		if (decodeCache == null)
+			return;
+
+		DecodedInstruction[] page = decodeCache[paddr / pageSize];
+		if (page != null)
+			page[(paddr % pageSize) >> 2] = null;
+	}
+
+	/**
+	 * Drop all cached instruction decodings for the specified physical page.
+	 * The kernel may call this after reassigning a frame, although stale
+	 * entries are also detected when they are next fetched.
+	 * 
+	 * @param ppn the physical page whose decodings to discard.
+	 */
+	public void invalidateDecodeCache(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		if (decodeCache != null)
+			decodeCache[ppn] = null;
+
+		if (blockCache != null)
+			blockCache[ppn] = null;
+	}
+
+	/**
+	 * Test whether the processor state can be saved in a machine snapshot.
+	 * Only a processor that translates through a flat page table qualifies.
+	 * A page directory, or the tables behind a TLB (walked by the page table
+	 * walker, or kept by a kernel such as the VM kernel's inverted page
+	 * table), are not captured by a snapshot, so restoring one would leave
+	 * memory out of step with them.
+	 * 
+	 * @return <tt>true</tt> if a snapshot may be saved or restored.
+	 */
+	boolean canSnapshot() {
+		return !usingTLB && pageDirectory == null;
+	}
+
+	/**
+	 * Write the processor state to a machine snapshot: the registers, the
+	 * delayed load in progress, the current page table, and all of physical
+	 * memory. Must only be called if <tt>canSnapshot()</tt> is <tt>true</tt>.
+	 * 
+	 * @param out the snapshot stream.
+	 * @exception IOException if the snapshot cannot be written.
+	 */
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		Lib.assertTrue(canSnapshot());
+
+		out.writeInt(numPhysPages);
+
+		for (int i = 0; i < numUserRegisters; i++)
+			out.writeInt(registers[i]);
+		out.writeInt(loadTarget);
+		out.writeInt(loadMask);
+		out.writeInt(loadValue);
+
+		TranslationEntry[] table = translations;
+		if (table == null) {
+			out.writeInt(-1);
+		}
+		else {
+			out.writeInt(table.length);
+			for (int i = 0; i < table.length; i++)
+				writeEntry(out, table[i]);
+		}
+
+		byte[] chunk = new byte[pageSize * 16];
+		ByteBuffer source = memory.duplicate();
+		source.clear();
+		while (source.hasRemaining()) {
+			int length = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	/**
+	 * Restore the processor state from a machine snapshot written by
+	 * <tt>writeSnapshot()</tt>. Physical memory is copied in bulk. A page table
+	 * is restored into the entries of the current page table, so the kernel's
+	 * references to them stay valid. If no page table is set, the saved one is
+	 * installed as a new page table, which the kernel can get from
+	 * <tt>getPageTable()</tt>.
+	 * 
+	 * @param in the snapshot, positioned at the processor state.
+	 */
+	void readSnapshot(ByteBuffer in) {
+		Lib.assertTrue(canRestoreSnapshot(in.duplicate()));
+
+		in.getInt();
+		for (int i = 0; i < numUserRegisters; i++)
+			registers[i] = in.getInt();
+		loadTarget = in.getInt();
+		loadMask = in.getInt();
+		loadValue = in.getInt();
+
+		int length = in.getInt();
+		if (length != -1) {
+			if (translations == null)
+				setPageTable(new TranslationEntry[length]);
+
+			for (int i = 0; i < length; i++) {
+				if (translations[i] == null)
+					translations[i] = new TranslationEntry();
+				readEntry(in, translations[i]);
+			}
+		}
+
+		ByteBuffer source = in.slice();
+		source.limit(numPhysPages * pageSize);
+		ByteBuffer target = memory.duplicate();
+		target.clear();
+		target.put(source);
+		in.position(in.position() + numPhysPages * pageSize);
+
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			invalidateDecodeCache(ppn);
+	}
+
+	/**
+	 * Test whether a snapshot written by <tt>writeSnapshot()</tt> fits this
+	 * processor, and skip past the processor state. <tt>canSnapshot()</tt>
+	 * must be <tt>true</tt>, the snapshot must have the same amount of memory,
+	 * and if a page table is set, the saved one must have the same size.
+	 * 
+	 * @param in the snapshot, positioned at the processor state.
+	 * @return <tt>true</tt> if the snapshot can be restored.
+	 */
+	boolean canRestoreSnapshot(ByteBuffer in) {
+		if (!canSnapshot() || in.getInt() != numPhysPages)
+			return false;
+
+		in.position(in.position() + (numUserRegisters + 3) * 4);
+
+		int length = in.getInt();
+		if (length != -1) {
+			if (length < 0 || length > in.remaining() / entrySnapshotSize)
+				return false;
+			if (translations != null && translations.length != length)
+				return false;
+			in.position(in.position() + length * entrySnapshotSize);
+		}
+
+		if (in.remaining() < numPhysPages * pageSize)
+			return false;
+		in.position(in.position() + numPhysPages * pageSize);
+
+		return true;
+	}
+
+	private static void writeEntry(DataOutputStream out, TranslationEntry entry)
+			throws IOException {
+		if (entry == null)
+			entry = new TranslationEntry();
+
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeInt(entry.asid);
+		out.writeByte((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0)
+				| (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0));
+	}
+
+	private static void readEntry(ByteBuffer in, TranslationEntry entry) {
+		entry.vpn = in.getInt();
+		entry.ppn = in.getInt();
+		entry.asid = in.getInt();
+
+		int bits = in.get();
+		entry.valid = (bits & 1) != 0;
+		entry.readOnly = (bits & 2) != 0;
+		entry.used = (bits & 4) != 0;
+		entry.dirty = (bits & 8) != 0;
+	}
+
+	/** The size in bytes of a translation entry in a machine snapshot. */
+	private static final int entrySnapshotSize = 13;
+
+	/**
+	 * Complete the in progress delayed load and scheduled a new one.
+	 * 
+	 * @param nextLoadTarget the target register of the new load.
+	 * @param nextLoadValue the value to be loaded into the new target.
+	 * @param nextLoadMask the mask specifying which bits in the new target are
+	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
+	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
+	 * written.
+	 */
+	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
+			int nextLoadMask) {
+		// complete previous delayed load, if not modifying r0
+		if (loadTarget != 0) {
+			int savedBits = registers[loadTarget] & ~loadMask;
+			int newBits = loadValue & loadMask;
+			registers[loadTarget] = savedBits | newBits;
+		}
+
+		// schedule next load
+		loadTarget = nextLoadTarget;
+		loadValue = nextLoadValue;
+		loadMask = nextLoadMask;
+	}
+
+	/**
+	 * Advance the PC to the next instruction.
+	 * 
+	 * <p>
+	 * Transfer the contents of the nextPC register into the PC register, and
+	 * then add 4 to the value in the nextPC register. Same as
+	 * <tt>advancePC(readRegister(regNextPC)+4)</tt>.
+	 * 
+	 * <p>
+	 * Use after handling a syscall exception so that the processor will move on
+	 * to the next instruction.
+	 */
+	public void advancePC() {
+		advancePC(registers[regNextPC] + 4);
 	}
 
 	/**
@@ -547,8 +1422,46 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/** <tt>true</tt> if TLB misses walk the registered page table. */
+	private boolean usingWalker = false;
+
+	/** The page table walked on TLB misses, or <tt>null</tt> if none. */
+	private TranslationEntry[] walkTable = null;
+
+	/**
+	 * The two-level page table in use instead of a flat one, or
+	 * <tt>null</tt>.
+	 */
+	private PageDirectory pageDirectory = null;
+
+	/**
+	 * For each TLB entry filled by the walker, the page table entry it was
+	 * copied from, so that the dirty bit can be written through.
+	 */
+	private TranslationEntry[] walkSources;
+
+	/** The next way replaced by the walker when a set is full. */
+	private int walkVictim = 0;
+
+	/**
+	 * Set whenever the walker refills the TLB. The block engine clears it on
+	 * entry to each block, and ends the block after an access that refills.
+	 */
+	private boolean tlbRefilled = false;
+
 	/** Number of TLB entries. */
-	private int tlbSize = 4;
+	private int tlbSize = defaultTLBSize;
+
+	/** Number of entries in each TLB set. */
+	private int tlbWays = defaultTLBSize;
+
+	/** Number of TLB sets. */
+	private int tlbSets = 1;
+
+	/** The current address space identifier. */
+	private int asid = 0;
+
+	private static final int defaultTLBSize = 4;
 
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
@@ -565,9 +1478,69 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if physical memory is not
+	 * on the Java heap.
+	 */
 	private byte[] mainMemory;
 
+	/**
+	 * Little-endian view of main memory, used for every access the processor
+	 * makes. Wraps <tt>mainMemory</tt> if it is not <tt>null</tt>.
+	 */
+	private ByteBuffer memory;
+
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page, or <tt>null</tt> if the decode cache is disabled.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
+	/**
+	 * Basic blocks, indexed by the physical page and word of their first
+	 * instruction, or <tt>null</tt> if <tt>Processor.engine</tt> is not
+	 * <tt>block</tt>.
+	 */
+	private BasicBlock[][] blockCache;
+
+	/** The maximum number of instructions in a basic block. */
+	private static final int maxBlockLength = 64;
+
+	/**
+	 * The number of times a basic block must be entered before it is
+	 * translated, or 0 to never translate blocks.
+	 */
+	private int hotBlockThreshold;
+
+	private static final int defaultHotBlockThreshold = 16;
+
+	/**
+	 * The physical addresses spanned by the translated block that is running,
+	 * and whether a user store has written into them since it was entered.
+	 */
+	private int translatedStart = 0, translatedEnd = 0;
+
+	private boolean translatedWritten = false;
+	/** <tt>true</tt> if the interpreter charges ticks a quantum at a time. */
+	private boolean usingQuantum;
+
+	/** The maximum number of instructions in a quantum. */
+	private static final int maxQuantum = 0x10000;
+
+	/** <tt>true</tt> if executed instructions are recorded by <tt>Trace</tt>. */
+	private boolean traceInstructions;
+
+	/** <tt>true</tt> if address translations are recorded by <tt>Trace</tt>. */
+	private boolean traceTranslations;
+
+	/** The profiler, or <tt>null</tt> if profiling is disabled. */
+	private Profiler profiler = null;
+
+	private static final int defaultProfileTop = 20;
+
+	/** The record thrown by every user exception; see <tt>trap()</tt>. */
+	private MipsException trap = new MipsException();
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -577,24 +1550,60 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInt = 'i';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
 		}
 	}
 
+	/**
+	 * Record a trap with no bad virtual address, and return the processor's
+	 * trap record so that it can be thrown.
+	 * 
+	 * @param cause the exception cause.
+	 * @return the trap record.
+	 */
+	private MipsException trap(int cause) {
+		return trap.set(cause, false, 0);
+	}
+
+	/**
+	 * Record a trap caused by an access to <i>badVAddr</i>, and return the
+	 * processor's trap record so that it can be thrown.
+	 * 
+	 * @param cause the exception cause.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the trap record.
+	 */
+	private MipsException trap(int cause, int badVAddr) {
+		return trap.set(cause, true, badVAddr);
+	}
+
+	/**
+	 * The trap record thrown by every user exception. A single record is
+	 * enough because <tt>handle()</tt> copies it into the cause and BadVAddr
+	 * registers before any other instruction can run, so syscalls, TLB misses,
+	 * and page faults allocate nothing and fill in no stack trace.
+	 */
 	private class MipsException extends Exception {
-		public MipsException(int cause) {
+		private MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 			this.cause = cause;
-		}
+			this.hasBadVAddr = hasBadVAddr;
+			this.badVAddr = badVAddr;
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+			return this;
+		}
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
+		/**
+		 * The trap record is thrown from many places, so a stack trace would
+		 * be both expensive and misleading.
+		 */
+		public Throwable fillInStackTrace() {
+			return this;
 		}
 
 		public void handle() {
@@ -626,6 +1635,19 @@ public final class Processor {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
 			fetch();
+			if (traceInstructions)
+				Trace.record(Trace.eventInstruction, registers[regPC], value, 0);
+			if (profiler != null)
+				profiler.instruction(registers[regPC], decoded);
+			decode();
+			execute();
+			writeBack();
+		}
+
+		public void run(DecodedInstruction decoded) throws MipsException {
+			this.value = decoded.value;
+			this.decoded = decoded;
+
 			decode();
 			execute();
 			writeBack();
@@ -641,78 +1663,52 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			// readMem() prints the memory trace for -d p
+			if (decodeCache == null || Lib.test(dbgProcessor)) {
+				value = readMem(registers[regPC], 4);
+				scratch.decode(value);
+				decoded = scratch;
+				return;
+			}
+
+			int paddr = translate(registers[regPC], 4, false);
+			value = memory.getInt(paddr);
+			decoded = getDecoded(paddr, value);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
-
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.info.operation;
+			name = decoded.info.name;
+			format = decoded.format;
+			flags = decoded.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -877,15 +1873,13 @@ public final class Processor {
 				registers[regHi] = (int) Lib.extract(dst, 32, 32);
 				break;
 			case Mips.DIV:
-				try {
-					registers[regLo] = (int) (src1 / src2);
-					registers[regHi] = (int) (src1 % src2);
-					if (registers[regLo] * src2 + registers[regHi] != src1)
-						throw new ArithmeticException();
-				}
-				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
-				}
+				if (src2 == 0)
+					throw trap(exceptionOverflow);
+
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw trap(exceptionOverflow);
 				break;
 
 			case Mips.SLL:
@@ -954,7 +1948,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw trap(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1025,7 +2019,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw trap(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1035,7 +2029,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw trap(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1070,6 +2064,11 @@ public final class Processor {
 		// state used to execute a single instruction
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
+		DecodedInstruction decoded;
+
+		/** Decoding used for every instruction when the cache is disabled. */
+		private DecodedInstruction scratch = new DecodedInstruction();
+
 		int operation, format, flags;
 
 		String name;
@@ -1085,21 +2084,1253 @@ public final class Processor {
 		boolean branch;
 	}
 
-	private static class Mips {
-		Mips() {
+	/**
+	 * A straight-line run of instructions within one physical page. A block
+	 * ends after the delay slot of its first branch or jump, after a syscall
+	 * or an invalid instruction, at the end of the page, or after
+	 * <tt>maxBlockLength</tt> instructions, whichever comes first.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr, Instruction interpreter) {
+			this.paddr = paddr;
+
+			DecodedInstruction[] decoded = new DecodedInstruction[maxBlockLength];
+			int end = (paddr / pageSize + 1) * pageSize;
+			boolean delaySlot = false;
+
+			while (length < maxBlockLength && paddr < end) {
+				DecodedInstruction inst = new DecodedInstruction();
+				inst.decode(memory.getInt(paddr));
+				decoded[length++] = inst;
+				paddr += 4;
+
+				int operation = inst.info.operation;
+				if (delaySlot || operation == Mips.SYSCALL
+						|| operation == Mips.INVALID
+						|| operation == Mips.UNIMPL)
+					break;
+
+				delaySlot = Lib.test(Mips.BRANCH, inst.flags);
+			}
+
+			instructions = new DecodedInstruction[length];
+			System.arraycopy(decoded, 0, instructions, 0, length);
+
+			handlers = new CompiledInstruction[length];
+			for (int i = 0; i < length; i++)
+				handlers[i] = compileInstruction(instructions[i], interpreter);
 		}
 
-		Mips(int operation, String name) {
-			this.operation = operation;
-			this.name = name;
+		/** The physical address of the first instruction. */
+		int paddr;
+
+		/** The number of instructions in this block. */
+		int length = 0;
+
+		DecodedInstruction[] instructions;
+
+		/**
+		 * Test whether the instructions of this block are still in memory.
+		 * 
+		 * @return <tt>true</tt> if no word of the block has been rewritten.
+		 */
+		boolean unchanged() {
+			for (int i = 0; i < length; i++) {
+				if (memory.getInt(paddr + i * 4) != instructions[i].value)
+					return false;
+			}
+
+			return true;
 		}
 
-		Mips(int operation, String name, int format, int flags) {
-			this(operation, name);
-			this.format = format;
-			this.flags = flags;
+		/** The handler that runs each instruction. */
+		CompiledInstruction[] handlers;
+
+		/** The number of times this block has been entered. */
+		int executions = 0;
+
+		/** The translated block, or <tt>null</tt> if not yet translated. */
+		TranslatedBlock translated = null;
+	}
+
+	/**
+	 * Counts executed instructions per virtual PC, per opcode, and per basic
+	 * block entry, separately for each profile context, and charges user
+	 * ticks to the context that was current when they were spent.
+	 * 
+	 * <p>
+	 * The interpreter reports every instruction and treats any instruction
+	 * that does not follow its predecessor as the start of a block; the block
+	 * engine reports whole blocks. Counts are kept in sparse three-level
+	 * tables indexed by word address, so counting costs a few array accesses
+	 * per instruction.
+	 */
+	private class Profiler {
+		Profiler(int top) {
+			this.top = top;
+			opcodes = new Mips[Mips.count];
+
+			current = getContext("kernel", null);
+			mark = privilege.stats.userTicks;
+		}
+
+		void switchTo(String name, Coff coff) {
+			charge();
+			current = getContext(name, coff);
+		}
+
+		void instruction(int pc, DecodedInstruction decoded) {
+			Context context = current;
+
+			count(context.pcCounts, pc);
+			if (pc != lastPC + 4)
+				count(context.blockCounts, pc);
+			countOpcode(context, decoded.info);
+			context.instructions++;
+
+			lastPC = pc;
+		}
+
+		void block(int pc, BasicBlock block, int executed) {
+			Context context = current;
+
+			count(context.blockCounts, pc);
+			for (int i = 0; i < executed; i++) {
+				count(context.pcCounts, pc + i * 4);
+				countOpcode(context, block.instructions[i].info);
+			}
+			context.instructions += executed;
 		}
 
+		void print() {
+			charge();
+
+			for (Context context : contexts.values()) {
+				if (context.instructions == 0)
+					continue;
+
+				System.out.println("Profile for " + context.name
+						+ ": instructions " + context.instructions
+						+ ", user ticks " + context.ticks);
+
+				printHotSpots("hot PCs", context, context.pcCounts);
+				printHotSpots("hot blocks", context, context.blockCounts);
+
+				ArrayList<long[]> ops = new ArrayList<long[]>();
+				for (int i = 0; i < opcodes.length; i++) {
+					if (context.opcodeCounts[i] != 0)
+						ops.add(new long[] { i, context.opcodeCounts[i] });
+				}
+				System.out.println("\thot opcodes:");
+				for (long[] op : sortByCount(ops)) {
+					String name = opcodes[(int) op[0]].name;
+					System.out.println("\t\t" + op[1] + "\t"
+							+ percent(op[1], context.instructions) + "\t"
+							+ name.substring(0, name.indexOf(' ')));
+				}
+			}
+		}
+
+		private Context getContext(String name, Coff coff) {
+			Context context = contexts.get(name);
+			if (context == null) {
+				context = new Context(name);
+				contexts.put(name, context);
+			}
+			// the executable is closed when the process exits, so keep a copy
+			// of its section layout
+			if (coff != null && context.sectionNames == null) {
+				int numSections = coff.getNumSections();
+				context.sectionNames = new String[numSections];
+				context.sectionStarts = new int[numSections];
+				context.sectionEnds = new int[numSections];
+
+				for (int s = 0; s < numSections; s++) {
+					CoffSection section = coff.getSection(s);
+					context.sectionNames[s] = section.getName().trim();
+					context.sectionStarts[s] = section.getFirstVPN() * pageSize;
+					context.sectionEnds[s] = context.sectionStarts[s]
+							+ section.getLength() * pageSize;
+				}
+			}
+
+			return context;
+		}
+
+		private void charge() {
+			current.ticks += privilege.stats.userTicks - mark;
+			mark = privilege.stats.userTicks;
+		}
+
+		private void countOpcode(Context context, Mips info) {
+			if (context.opcodeCounts[info.id]++ == 0)
+				opcodes[info.id] = info;
+		}
+
+		private void count(long[][][] table, int pc) {
+			int word = pc >>> 2;
+
+			long[][] middle = table[word >>> (2 * levelBits)];
+			if (middle == null) {
+				middle = new long[levelSize][];
+				table[word >>> (2 * levelBits)] = middle;
+			}
+
+			long[] leaf = middle[(word >>> levelBits) & levelMask];
+			if (leaf == null) {
+				leaf = new long[levelSize];
+				middle[(word >>> levelBits) & levelMask] = leaf;
+			}
+
+			leaf[word & levelMask]++;
+		}
+
+		private void printHotSpots(String title, Context context,
+				long[][][] table) {
+			ArrayList<long[]> spots = new ArrayList<long[]>();
+
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] == null)
+					continue;
+				for (int j = 0; j < levelSize; j++) {
+					if (table[i][j] == null)
+						continue;
+					for (int k = 0; k < levelSize; k++) {
+						long count = table[i][j][k];
+						if (count != 0) {
+							long word = ((long) i << (2 * levelBits))
+									| (j << levelBits) | k;
+							spots.add(new long[] { word << 2, count });
+						}
+					}
+				}
+			}
+
+			System.out.println("\t" + title + ":");
+			for (long[] spot : sortByCount(spots)) {
+				int pc = (int) spot[0];
+				System.out.println("\t\t" + spot[1] + "\t"
+						+ percent(spot[1], context.instructions) + "\t0x"
+						+ Lib.toHexString(pc) + "\t" + symbolize(context, pc));
+			}
+		}
+
+		private ArrayList<long[]> sortByCount(ArrayList<long[]> entries) {
+			Collections.sort(entries, new Comparator<long[]>() {
+				public int compare(long[] a, long[] b) {
+					if (a[1] != b[1])
+						return a[1] > b[1] ? -1 : 1;
+					return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+				}
+			});
+
+			while (entries.size() > top)
+				entries.remove(entries.size() - 1);
+
+			return entries;
+		}
+
+		private String percent(long count, long total) {
+			return (count * 1000 / total) / 10.0 + "%";
+		}
+
+		private String symbolize(Context context, int pc) {
+			if (context.sectionNames == null)
+				return "";
+
+			for (int s = 0; s < context.sectionNames.length; s++) {
+				if (pc >= context.sectionStarts[s]
+						&& pc < context.sectionEnds[s])
+					return context.sectionNames[s] + "+0x"
+							+ Integer.toHexString(pc - context.sectionStarts[s]);
+			}
+
+			return "";
+		}
+
+		private class Context {
+			Context(String name) {
+				this.name = name;
+			}
+
+			String name;
+
+			/** The COFF section layout, or <tt>null</tt> if unknown. */
+			String[] sectionNames = null;
+
+			int[] sectionStarts, sectionEnds;
+
+			long instructions = 0;
+
+			long ticks = 0;
+
+			long[][][] pcCounts = new long[levelSize][][];
+
+			long[][][] blockCounts = new long[levelSize][][];
+
+			long[] opcodeCounts = new long[opcodes.length];
+		}
+
+		/** The maximum number of entries printed in each list. */
+		private int top;
+
+		private LinkedHashMap<String, Context> contexts = new LinkedHashMap<String, Context>();
+
+		private Context current;
+
+		/** The user tick count when the current context was last charged. */
+		private long mark;
+
+		private int lastPC = 0;
+
+		/** A representative table entry for each opcode seen, by id. */
+		private Mips[] opcodes;
+
+		/** Each level of a count table resolves 10 bits of the word address. */
+		private static final int levelBits = 10;
+
+		private static final int levelSize = 1 << levelBits;
+
+		private static final int levelMask = levelSize - 1;
+	}
+
+	/**
+	 * Select the specialized implementation of a decoded instruction. Common
+	 * ALU, load, store, branch, and jump instructions get their own classes
+	 * with every operand resolved; anything else (signed overflow checks,
+	 * division, unaligned loads and stores, syscalls, and invalid
+	 * instructions) is left to the reference interpreter.
+	 * 
+	 * @param decoded the instruction to compile.
+	 * @param inst the instruction state used by the reference interpreter.
+	 * @return the compiled instruction.
+	 */
+	private CompiledInstruction compileInstruction(DecodedInstruction decoded,
+			Instruction inst) {
+		if (Lib.test(Mips.OVERFLOW, decoded.flags))
+			return new InterpretedInstruction(decoded, inst);
+
+		switch (decoded.info.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+			return new AluInstruction(decoded);
+		case Mips.MULT:
+			return new MultInstruction(decoded);
+		case Mips.MFLO:
+		case Mips.MFHI:
+			return new MoveFromInstruction(decoded);
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+		case Mips.JUMP:
+			return new BranchInstruction(decoded);
+		case Mips.LOAD:
+			return new LoadInstruction(decoded);
+		case Mips.STORE:
+			return new StoreInstruction(decoded);
+		default:
+			return new InterpretedInstruction(decoded, inst);
+		}
+	}
+
+	/**
+	 * An instruction specialized for its operation and operands. Running a
+	 * compiled instruction has exactly the same effect on the registers,
+	 * memory, and delayed load state as running the same instruction through
+	 * <tt>Instruction</tt>.
+	 */
+	private abstract class CompiledInstruction {
+		CompiledInstruction(DecodedInstruction decoded) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			sh = decoded.sh;
+			imm = decoded.imm;
+			dstReg = decoded.dstReg;
+			unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+		}
+
+		abstract void run() throws MipsException;
+
+		/**
+		 * Complete the previous delayed load, write the destination register,
+		 * and advance the PC.
+		 * 
+		 * @param dst the value to write to the destination register.
+		 */
+		void writeBack(int dst) {
+			finishLoad();
+
+			if (dstReg != 0)
+				registers[dstReg] = dst;
+
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		long operand(int value) {
+			return unsigned ? (value & 0xFFFFFFFFL) : value;
+		}
+
+		final int rs, rt, sh, imm, dstReg;
+
+		final boolean unsigned;
+	}
+
+	private class InterpretedInstruction extends CompiledInstruction {
+		InterpretedInstruction(DecodedInstruction decoded, Instruction inst) {
+			super(decoded);
+			this.decoded = decoded;
+			this.inst = inst;
+		}
+
+		void run() throws MipsException {
+			inst.run(decoded);
+		}
+
+		private final DecodedInstruction decoded;
+
+		private final Instruction inst;
+	}
+
+	private class AluInstruction extends CompiledInstruction {
+		AluInstruction(DecodedInstruction decoded) {
+			super(decoded);
+			operation = decoded.info.operation;
+			shiftAmount = Lib.test(Mips.SRC1SH, decoded.flags);
+			immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+		}
+
+		void run() {
+			long src1 = operand(shiftAmount ? sh : registers[rs]);
+			long src2 = operand(immediate ? imm : registers[rt]);
+			long dst;
+
+			switch (operation) {
+			case Mips.ADD:
+				dst = src1 + src2;
+				break;
+			case Mips.SUB:
+				dst = src1 - src2;
+				break;
+			case Mips.SLL:
+				dst = src2 << (src1 & 0x1F);
+				break;
+			case Mips.SRA:
+				dst = src2 >> (src1 & 0x1F);
+				break;
+			case Mips.SRL:
+				dst = src2 >>> (src1 & 0x1F);
+				break;
+			case Mips.SLT:
+				dst = (src1 < src2) ? 1 : 0;
+				break;
+			case Mips.AND:
+				dst = src1 & src2;
+				break;
+			case Mips.OR:
+				dst = src1 | src2;
+				break;
+			case Mips.NOR:
+				dst = ~(src1 | src2);
+				break;
+			case Mips.XOR:
+				dst = src1 ^ src2;
+				break;
+			default:
+				dst = imm << 16;
+				break;
+			}
+
+			writeBack((int) dst);
+		}
+
+		private final int operation;
+
+		private final boolean shiftAmount, immediate;
+	}
+
+	private class MultInstruction extends CompiledInstruction {
+		MultInstruction(DecodedInstruction decoded) {
+			super(decoded);
+		}
+
+		void run() {
+			long dst = operand(registers[rs]) * operand(registers[rt]);
+			registers[regLo] = (int) dst;
+			registers[regHi] = (int) (dst >> 32);
+
+			finishLoad();
+			advancePC(registers[regNextPC] + 4);
+		}
+	}
+
+	private class MoveFromInstruction extends CompiledInstruction {
+		MoveFromInstruction(DecodedInstruction decoded) {
+			super(decoded);
+			source = (decoded.info.operation == Mips.MFLO) ? regLo : regHi;
+		}
+
+		void run() {
+			writeBack(registers[source]);
+		}
+
+		private final int source;
+	}
+
+	private class BranchInstruction extends CompiledInstruction {
+		BranchInstruction(DecodedInstruction decoded) {
+			super(decoded);
+			operation = decoded.info.operation;
+			format = decoded.format;
+			target = decoded.target << 2;
+			branchOffset = decoded.branchOffset;
+			link = Lib.test(Mips.LINK, decoded.flags);
+		}
+
+		void run() {
+			int nextPC = registers[regNextPC] + 4;
+			int src1 = registers[rs];
+			int src2 = registers[rt];
+			boolean branch;
+
+			switch (operation) {
+			case Mips.BEQ:
+				branch = (src1 == src2);
+				break;
+			case Mips.BNE:
+				branch = (src1 != src2);
+				break;
+			case Mips.BGEZ:
+				branch = (src1 >= 0);
+				break;
+			case Mips.BGTZ:
+				branch = (src1 > 0);
+				break;
+			case Mips.BLEZ:
+				branch = (src1 <= 0);
+				break;
+			case Mips.BLTZ:
+				branch = (src1 < 0);
+				break;
+			default:
+				branch = true;
+				break;
+			}
+
+			if (branch) {
+				if (format == Mips.RFMT)
+					nextPC = src1;
+				else if (format == Mips.IFMT)
+					nextPC = registers[regNextPC] + branchOffset;
+				else
+					nextPC = (registers[regNextPC] & 0xF0000000) | target;
+			}
+
+			finishLoad();
+
+			if (link && dstReg != 0)
+				registers[dstReg] = registers[regNextPC] + 4;
+
+			advancePC(nextPC);
+		}
+
+		private final int operation, format, target, branchOffset;
+
+		private final boolean link;
+	}
+
+	private class LoadInstruction extends CompiledInstruction {
+		LoadInstruction(DecodedInstruction decoded) {
+			super(decoded);
+			size = decoded.size;
+		}
+
+		void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final int size;
+	}
+
+	private class StoreInstruction extends CompiledInstruction {
+		StoreInstruction(DecodedInstruction decoded) {
+			super(decoded);
+			size = decoded.size;
+		}
+
+		void run() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+
+			finishLoad();
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final int size;
+	}
+
+	/**
+	 * The superclass of the classes generated for hot basic blocks. Generated
+	 * code reads and writes the register file directly, and calls back into
+	 * the processor for memory accesses, delayed loads, and instructions that
+	 * it leaves to the reference interpreter.
+	 */
+	abstract class TranslatedBlock {
+		TranslatedBlock(BasicBlock block) {
+			handlers = block.handlers;
+		}
+
+		/**
+		 * Run the block from its first instruction.
+		 * 
+		 * @return the number of instructions executed. The block stops early,
+		 * after the instruction that caused it, if a store writes to the
+		 * block's own instructions or the walker refills the TLB.
+		 * @exception MipsException if an instruction raised an exception. The
+		 * number of instructions executed, including the faulting one, is left
+		 * in <tt>executed</tt>.
+		 */
+		abstract int run() throws MipsException;
+
+		int readMem(int vaddr, int size) throws MipsException {
+			return Processor.this.readMem(vaddr, size);
+		}
+
+		void writeMem(int vaddr, int size, int value) throws MipsException {
+			Processor.this.writeMem(vaddr, size, value);
+		}
+
+		void finishLoad() {
+			Processor.this.finishLoad();
+		}
+
+		void delayedLoad(int target, int value) {
+			Processor.this.delayedLoad(target, value, 0xFFFFFFFF);
+		}
+
+		void interpret(int index) throws MipsException {
+			handlers[index].run();
+		}
+
+		boolean stopped() {
+			return translatedWritten || tlbRefilled;
+		}
+
+		final int[] registers = Processor.this.registers;
+
+		/**
+		 * The number of instructions started by the current call to
+		 * <tt>run()</tt>, updated before each one that can raise an exception.
+		 */
+		int executed;
+
+		private final CompiledInstruction[] handlers;
+	}
+
+	/**
+	 * Return a new instance of the class generated for a hot basic block,
+	 * generating the class if no block with the same instructions has been
+	 * translated before. Each instruction compiled to its own handler class is
+	 * translated to the bytecode equivalent of that handler's <tt>run()</tt>,
+	 * with operands as constants; other instructions call their handler.
+	 * 
+	 * @param block the block to translate.
+	 * @return the translated block, or <tt>null</tt> if the class could not be
+	 * defined.
+	 */
+	private TranslatedBlock translateBlock(final BasicBlock block) {
+		if (defineHiddenClass == null)
+			return null;
+
+		// the generated code depends only on the instruction words, so a
+		// program loaded into different frames reuses its classes
+		int[] words = new int[block.length];
+		for (int i = 0; i < block.length; i++)
+			words[i] = block.instructions[i].value;
+
+		final IntBuffer key = IntBuffer.wrap(words);
+		final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+		PrivilegedAction<Object> action = new PrivilegedAction<Object>() {
+			public Object run() {
+				try {
+					Constructor<?> constructor = translatedClasses.get(key);
+					if (constructor == null) {
+						byte[] bytes = new BlockTranslator(block)
+								.toByteArray();
+						Object hidden = defineHiddenClass.invoke(lookup,
+								bytes, Boolean.TRUE, noClassOptions);
+
+						constructor = ((MethodHandles.Lookup) hidden)
+								.lookupClass().getConstructor(Processor.class,
+										BasicBlock.class);
+						translatedClasses.put(key, constructor);
+					}
+
+					return constructor.newInstance(Processor.this, block);
+				}
+				catch (Exception e) {
+					return e;
+				}
+			}
+		};
+
+		Object translated = privilege.doPrivileged(action);
+
+		if (translated instanceof TranslatedBlock)
+			return (TranslatedBlock) translated;
+
+		// the security manager or the JVM refused the class, so stay on the
+		// handler chains from now on
+		defineHiddenClass = null;
+		return null;
+	}
+
+	/**
+	 * Find <tt>MethodHandles.Lookup.defineHiddenClass()</tt>, which is only
+	 * present on Java 15 and later.
+	 * 
+	 * @return <tt>true</tt> if hidden classes are supported.
+	 */
+	private static boolean findDefineHiddenClass() {
+		try {
+			Class<?> options = Class.forName("java.lang.invoke."
+					+ "MethodHandles$Lookup$ClassOption");
+			noClassOptions = Array.newInstance(options, 0);
+			defineHiddenClass = MethodHandles.Lookup.class.getMethod(
+					"defineHiddenClass", byte[].class, boolean.class,
+					noClassOptions.getClass());
+			return true;
+		}
+		catch (ClassNotFoundException e) {
+			return false;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static Method defineHiddenClass = null;
+
+	private static Object noClassOptions;
+
+	/**
+	 * The constructors of the classes generated so far, keyed by the
+	 * instruction words they were generated from.
+	 */
+	private HashMap<IntBuffer, Constructor<?>> translatedClasses =
+			new HashMap<IntBuffer, Constructor<?>>();
+
+	/**
+	 * Generates the class for one hot basic block. The generated
+	 * <tt>run()</tt> method keeps the register file in local 1 and uses locals
+	 * 2 through 5 as temporaries.
+	 */
+	private class BlockTranslator {
+		BlockTranslator(BasicBlock block) {
+			classFile = new ClassFile(translatedName, superName);
+
+			String init = "(Lnachos/machine/Processor;"
+					+ "Lnachos/machine/Processor$BasicBlock;)V";
+
+			code = classFile.addMethod(ClassFile.accPublic, "<init>", init);
+			code.local(ClassFile.ALOAD, 0);
+			code.local(ClassFile.ALOAD, 1);
+			code.local(ClassFile.ALOAD, 2);
+			code.member(ClassFile.INVOKESPECIAL, classFile.methodRef(superName,
+					"<init>", init));
+			code.op(ClassFile.RETURN);
+			code.limits(3, 3);
+
+			code = classFile.addMethod(ClassFile.accPublic, "run", "()I");
+			code.local(ClassFile.ALOAD, 0);
+			code.member(ClassFile.GETFIELD, classFile.fieldRef(superName,
+					"registers", "[I"));
+			code.local(ClassFile.ASTORE, 1);
+
+			for (int i = 0; i < block.length; i++)
+				translate(block.handlers[i], i);
+
+			code.pushInt(block.length);
+			code.op(ClassFile.IRETURN);
+			code.limits(8, 6);
+		}
+
+		byte[] toByteArray() {
+			return classFile.toByteArray();
+		}
+
+		private void translate(CompiledInstruction handler, int index) {
+			if (handler instanceof AluInstruction)
+				translateAlu((AluInstruction) handler);
+			else if (handler instanceof MultInstruction)
+				translateMult(handler);
+			else if (handler instanceof MoveFromInstruction)
+				translateMoveFrom((MoveFromInstruction) handler);
+			else if (handler instanceof BranchInstruction)
+				translateBranch((BranchInstruction) handler);
+			else if (handler instanceof LoadInstruction)
+				translateLoad((LoadInstruction) handler, index);
+			else if (handler instanceof StoreInstruction)
+				translateStore((StoreInstruction) handler, index);
+			else
+				translateInterpreted(index);
+		}
+
+		private void translateAlu(AluInstruction alu) {
+			if (alu.dstReg != 0) {
+				if (alu.operation == Mips.LUI) {
+					code.pushInt(alu.imm << 16);
+				}
+				else {
+					switch (alu.operation) {
+					case Mips.SLL:
+					case Mips.SRA:
+					case Mips.SRL:
+						pushSource2(alu);
+						pushSource1(alu);
+						code.pushLong(0x1F);
+						code.op(ClassFile.LAND);
+						code.op(ClassFile.L2I);
+						break;
+					default:
+						pushSource1(alu);
+						pushSource2(alu);
+						break;
+					}
+
+					switch (alu.operation) {
+					case Mips.ADD:
+						code.op(ClassFile.LADD);
+						break;
+					case Mips.SUB:
+						code.op(ClassFile.LSUB);
+						break;
+					case Mips.SLL:
+						code.op(ClassFile.LSHL);
+						break;
+					case Mips.SRA:
+						code.op(ClassFile.LSHR);
+						break;
+					case Mips.SRL:
+						code.op(ClassFile.LUSHR);
+						break;
+					case Mips.AND:
+						code.op(ClassFile.LAND);
+						break;
+					case Mips.OR:
+						code.op(ClassFile.LOR);
+						break;
+					case Mips.NOR:
+						code.op(ClassFile.LOR);
+						code.pushLong(-1);
+						code.op(ClassFile.LXOR);
+						break;
+					case Mips.XOR:
+						code.op(ClassFile.LXOR);
+						break;
+					}
+
+					if (alu.operation == Mips.SLT) {
+						// the sign bit of the comparison is set if src1 < src2
+						code.op(ClassFile.LCMP);
+						code.pushInt(31);
+						code.op(ClassFile.IUSHR);
+					}
+					else {
+						code.op(ClassFile.L2I);
+					}
+				}
+
+				code.local(ClassFile.ISTORE, 2);
+			}
+
+			finishLoad();
+
+			if (alu.dstReg != 0) {
+				code.local(ClassFile.ALOAD, 1);
+				code.pushInt(alu.dstReg);
+				code.local(ClassFile.ILOAD, 2);
+				code.op(ClassFile.IASTORE);
+			}
+
+			advancePC();
+		}
+
+		private void pushSource1(AluInstruction alu) {
+			if (alu.shiftAmount)
+				code.pushLong(alu.operand(alu.sh));
+			else
+				pushOperand(alu, alu.rs);
+		}
+
+		private void pushSource2(AluInstruction alu) {
+			if (alu.immediate)
+				code.pushLong(alu.operand(alu.imm));
+			else
+				pushOperand(alu, alu.rt);
+		}
+
+		private void pushOperand(CompiledInstruction handler, int number) {
+			pushRegister(number);
+			code.op(ClassFile.I2L);
+
+			if (handler.unsigned) {
+				code.pushLong(0xFFFFFFFFL);
+				code.op(ClassFile.LAND);
+			}
+		}
+
+		private void translateMult(CompiledInstruction mult) {
+			pushOperand(mult, mult.rs);
+			pushOperand(mult, mult.rt);
+			code.op(ClassFile.LMUL);
+			code.local(ClassFile.LSTORE, 4);
+
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(regLo);
+			code.local(ClassFile.LLOAD, 4);
+			code.op(ClassFile.L2I);
+			code.op(ClassFile.IASTORE);
+
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(regHi);
+			code.local(ClassFile.LLOAD, 4);
+			code.pushInt(32);
+			code.op(ClassFile.LSHR);
+			code.op(ClassFile.L2I);
+			code.op(ClassFile.IASTORE);
+
+			finishLoad();
+			advancePC();
+		}
+
+		private void translateMoveFrom(MoveFromInstruction move) {
+			pushRegister(move.source);
+			code.local(ClassFile.ISTORE, 2);
+
+			finishLoad();
+
+			if (move.dstReg != 0) {
+				code.local(ClassFile.ALOAD, 1);
+				code.pushInt(move.dstReg);
+				code.local(ClassFile.ILOAD, 2);
+				code.op(ClassFile.IASTORE);
+			}
+
+			advancePC();
+		}
+
+		private void translateBranch(BranchInstruction branch) {
+			ClassFile.Label notTaken = code.newLabel();
+			boolean conditional = true;
+
+			pushRegister(branch.rs);
+			code.local(ClassFile.ISTORE, 2);
+
+			switch (branch.operation) {
+			case Mips.BEQ:
+				code.local(ClassFile.ILOAD, 2);
+				pushRegister(branch.rt);
+				code.jump(ClassFile.IF_ICMPNE, notTaken);
+				break;
+			case Mips.BNE:
+				code.local(ClassFile.ILOAD, 2);
+				pushRegister(branch.rt);
+				code.jump(ClassFile.IF_ICMPEQ, notTaken);
+				break;
+			case Mips.BGEZ:
+				code.local(ClassFile.ILOAD, 2);
+				code.jump(ClassFile.IFLT, notTaken);
+				break;
+			case Mips.BGTZ:
+				code.local(ClassFile.ILOAD, 2);
+				code.jump(ClassFile.IFLE, notTaken);
+				break;
+			case Mips.BLEZ:
+				code.local(ClassFile.ILOAD, 2);
+				code.jump(ClassFile.IFGT, notTaken);
+				break;
+			case Mips.BLTZ:
+				code.local(ClassFile.ILOAD, 2);
+				code.jump(ClassFile.IFGE, notTaken);
+				break;
+			default:
+				conditional = false;
+				break;
+			}
+
+			// the branch target goes in local 3
+			if (branch.format == Mips.RFMT) {
+				code.local(ClassFile.ILOAD, 2);
+			}
+			else if (branch.format == Mips.IFMT) {
+				pushRegister(regNextPC);
+				code.pushInt(branch.branchOffset);
+				code.op(ClassFile.IADD);
+			}
+			else {
+				pushRegister(regNextPC);
+				code.pushInt(0xF0000000);
+				code.op(ClassFile.IAND);
+				code.pushInt(branch.target);
+				code.op(ClassFile.IOR);
+			}
+			code.local(ClassFile.ISTORE, 3);
+
+			if (conditional) {
+				ClassFile.Label join = code.newLabel();
+				code.jump(ClassFile.GOTO, join);
+
+				code.mark(notTaken);
+				pushRegister(regNextPC);
+				code.pushInt(4);
+				code.op(ClassFile.IADD);
+				code.local(ClassFile.ISTORE, 3);
+
+				code.mark(join);
+			}
+
+			finishLoad();
+
+			if (branch.link && branch.dstReg != 0) {
+				code.local(ClassFile.ALOAD, 1);
+				code.pushInt(branch.dstReg);
+				pushRegister(regNextPC);
+				code.pushInt(4);
+				code.op(ClassFile.IADD);
+				code.op(ClassFile.IASTORE);
+			}
+
+			// regPC = regNextPC, regNextPC = target
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(regPC);
+			pushRegister(regNextPC);
+			code.op(ClassFile.IASTORE);
+
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(regNextPC);
+			code.local(ClassFile.ILOAD, 3);
+			code.op(ClassFile.IASTORE);
+		}
+
+		private void translateLoad(LoadInstruction load, int index) {
+			setExecuted(index + 1);
+
+			code.local(ClassFile.ALOAD, 0);
+			pushAddress(load);
+			code.pushInt(load.size);
+			invoke("readMem", "(II)I");
+
+			if (!load.unsigned && load.size == 1)
+				code.op(ClassFile.I2B);
+			else if (!load.unsigned && load.size == 2)
+				code.op(ClassFile.I2S);
+			code.local(ClassFile.ISTORE, 2);
+
+			code.local(ClassFile.ALOAD, 0);
+			code.pushInt(load.dstReg);
+			code.local(ClassFile.ILOAD, 2);
+			invoke("delayedLoad", "(II)V");
+
+			advancePC();
+			returnIfStopped(index + 1);
+		}
+
+		private void translateStore(StoreInstruction store, int index) {
+			setExecuted(index + 1);
+
+			code.local(ClassFile.ALOAD, 0);
+			pushAddress(store);
+			code.pushInt(store.size);
+			pushRegister(store.rt);
+			invoke("writeMem", "(III)V");
+
+			finishLoad();
+			advancePC();
+			returnIfStopped(index + 1);
+		}
+
+		private void translateInterpreted(int index) {
+			setExecuted(index + 1);
+
+			code.local(ClassFile.ALOAD, 0);
+			code.pushInt(index);
+			invoke("interpret", "(I)V");
+
+			returnIfStopped(index + 1);
+		}
+
+		private void pushRegister(int number) {
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(number);
+			code.op(ClassFile.IALOAD);
+		}
+
+		private void pushAddress(CompiledInstruction handler) {
+			pushRegister(handler.rs);
+			code.pushInt(handler.imm);
+			code.op(ClassFile.IADD);
+		}
+
+		private void finishLoad() {
+			code.local(ClassFile.ALOAD, 0);
+			invoke("finishLoad", "()V");
+		}
+
+		/** regPC = regNextPC, regNextPC = regPC + 4 */
+		private void advancePC() {
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(regPC);
+			pushRegister(regNextPC);
+			code.op(ClassFile.IASTORE);
+
+			code.local(ClassFile.ALOAD, 1);
+			code.pushInt(regNextPC);
+			pushRegister(regPC);
+			code.pushInt(4);
+			code.op(ClassFile.IADD);
+			code.op(ClassFile.IASTORE);
+		}
+
+		private void setExecuted(int count) {
+			code.local(ClassFile.ALOAD, 0);
+			code.pushInt(count);
+			code.member(ClassFile.PUTFIELD, classFile.fieldRef(superName,
+					"executed", "I"));
+		}
+
+		private void returnIfStopped(int count) {
+			ClassFile.Label proceed = code.newLabel();
+
+			code.local(ClassFile.ALOAD, 0);
+			invoke("stopped", "()Z");
+			code.jump(ClassFile.IFEQ, proceed);
+			code.pushInt(count);
+			code.op(ClassFile.IRETURN);
+
+			code.mark(proceed);
+		}
+
+		private void invoke(String name, String descriptor) {
+			code.member(ClassFile.INVOKEVIRTUAL, classFile.methodRef(superName,
+					name, descriptor));
+		}
+
+		private ClassFile classFile;
+
+		private ClassFile.Code code;
+
+		private static final String superName =
+				"nachos/machine/Processor$TranslatedBlock";
+
+		private static final String translatedName =
+				"nachos/machine/Processor$Translated";
+	}
+
+	/**
+	 * The parts of an instruction's decoding that depend only on the
+	 * instruction word, and not on the contents of any register.
+	 */
+	private static class DecodedInstruction {
+		void decode(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offset uses the sign-extended immediate
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm &= 0xFFFF;
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		int format, flags, size, dstReg, branchOffset;
+
+		Mips info;
+	}
+
+	private static class Mips {
+		Mips() {
+		}
+
+		Mips(int operation, String name) {
+			this.operation = operation;
+			this.name = name;
+		}
+
+		Mips(int operation, String name, int format, int flags) {
+			this(operation, name);
+			this.format = format;
+			this.flags = flags;
+		}
+
+		/** A unique index for this table entry, below <tt>count</tt>. */
+		final int id = count++;
+
+		static int count;
+
 		int operation = INVALID;
 
 		String name = "invalid ";
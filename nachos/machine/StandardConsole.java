@@ -32,6 +32,11 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
+		receiveEvent = privilege.interrupt.createInterrupt("console read",
+				receiveInterrupt);
+		sendEvent = privilege.interrupt.createInterrupt("console write",
+				sendInterrupt);
+
 		scheduleReceiveInterrupt();
 	}
 
@@ -42,8 +47,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				receiveInterrupt);
+		receiveEvent.reschedule(Stats.ConsoleTime);
 	}
 
 	/**
@@ -115,8 +119,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				sendInterrupt);
+		sendEvent.reschedule(Stats.ConsoleTime);
 	}
 
 	/**
@@ -154,6 +157,10 @@ public class StandardConsole implements SerialConsole {
 
 	private Runnable sendInterrupt;
 
+	private Privilege.InterruptHandle receiveEvent;
+
+	private Privilege.InterruptHandle sendEvent;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
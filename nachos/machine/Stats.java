@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -19,7 +23,8 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks
+				+ (idleTicks != 0 ? ", idle " + idleTicks : ""));
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
@@ -30,6 +35,43 @@ public final class Stats {
 				+ ", sent " + numPacketsSent);
 	}
 
+	/**
+	 * Write the event counts to a machine snapshot. The tick counts are not
+	 * saved, since simulated time is not restored.
+	 * 
+	 * @param out the snapshot stream.
+	 * @exception IOException if the snapshot cannot be written.
+	 */
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		out.writeInt(numDiskReads);
+		out.writeInt(numDiskWrites);
+		out.writeInt(numConsoleReads);
+		out.writeInt(numConsoleWrites);
+		out.writeInt(numPageFaults);
+		out.writeInt(numTLBMisses);
+		out.writeInt(numPacketsSent);
+		out.writeInt(numPacketsReceived);
+	}
+
+	/**
+	 * Restore the event counts from a machine snapshot.
+	 * 
+	 * @param in the snapshot, positioned at the statistics.
+	 */
+	void readSnapshot(ByteBuffer in) {
+		numDiskReads = in.getInt();
+		numDiskWrites = in.getInt();
+		numConsoleReads = in.getInt();
+		numConsoleWrites = in.getInt();
+		numPageFaults = in.getInt();
+		numTLBMisses = in.getInt();
+		numPacketsSent = in.getInt();
+		numPacketsReceived = in.getInt();
+	}
+
+	/** The size in bytes of the statistics in a machine snapshot. */
+	static final int snapshotSize = 8 * 4;
+
 	/**
 	 * The total amount of simulated time that has passed since Nachos started.
 	 */
@@ -45,6 +87,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time skipped by <tt>Interrupt.idle()</tt>
+	 * while no thread was ready to run.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -6,6 +6,10 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +18,15 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is <tt>true</tt>, the JVM threads are
+ * virtual threads rather than platform threads. This requires Java 21 or
+ * later, and raises the limit on the number of live TCBs from
+ * <tt>maxThreads</tt> to <tt>maxVirtualThreads</tt>. Unless
+ * <tt>jdk.virtualThreadScheduler.parallelism</tt> is set, all of them run as
+ * continuations on a single carrier thread, so a context switch is a yield
+ * in user space that never reaches the OS scheduler.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +52,40 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		poolSize = Config.getInteger("TCB.poolSize", 0);
+		poolIdleTimeout = Config.getInteger("TCB.poolIdleTimeout", 10000);
+		Lib.assertTrue(poolSize >= 0 && poolIdleTimeout >= 0);
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			/*
+			 * Only one Nachos thread runs at a time, so a single carrier
+			 * thread is enough. Capping the pool also keeps the JVM from
+			 * starting extra carriers, which needs privilege, when a virtual
+			 * thread blocks in I/O.
+			 */
+			setDefaultProperty("jdk.virtualThreadScheduler.parallelism", "1");
+			setDefaultProperty("jdk.virtualThreadScheduler.maxPoolSize", "1");
+
+			/*
+			 * Look up Thread.ofVirtual() reflectively, so that Nachos still
+			 * builds and runs on older JVMs when virtual threads are off.
+			 */
+			try {
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+						.invoke(null);
+				unstartedMethod = Class.forName("java.lang.Thread$Builder")
+						.getMethod("unstarted", Runnable.class);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("virtual threads require Java 21");
+			}
+		}
+	}
+
+	private static void setDefaultProperty(String key, String value) {
+		if (System.getProperty(key) == null)
+			System.setProperty(key, value);
 	}
 
 	/**
@@ -68,7 +115,9 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		int limit = (virtualThreadBuilder == null ? maxThreads
+				: maxVirtualThreads);
+		Lib.assertTrue(runningThreads.size() < limit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -89,7 +138,34 @@ public final class TCB {
 
 		this.target = target;
 
-		if (!isFirstTCB) {
+		if (!isFirstTCB && poolSize > 0 && virtualThreadBuilder == null) {
+			/*
+			 * Take an idle Java thread from the pool if there is one, or
+			 * make a new pooled thread. Either way the thread runs
+			 * threadroot() once we hand this TCB to it.
+			 */
+			PooledThread pooled = idleThreads.pollFirst();
+			if (pooled != null) {
+				numIdleThreads.decrementAndGet();
+			}
+			else {
+				final PooledThread created = new PooledThread();
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						created.javaThread = new Thread(created);
+						created.javaThread.start();
+					}
+				});
+				pooled = created;
+			}
+
+			javaThread = pooled.javaThread;
+			currentTCB.running = false;
+
+			pooled.assign(this);
+			currentTCB.waitForInterrupt();
+		}
+		else if (!isFirstTCB) {
 			/*
 			 * If this is not the first TCB, we have to make a new Java thread
 			 * to run it. Creating Java threads is a privileged operation.
@@ -102,7 +178,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newThread(tcbTarget);
 				}
 			});
 
@@ -118,6 +194,24 @@ public final class TCB {
 			this.javaThread.start();
 			currentTCB.waitForInterrupt();
 		}
+		else if (virtualThreadBuilder != null) {
+			/*
+			 * This is the first TCB, but with virtual threads we run it on a
+			 * virtual thread too, so that every TCB is a continuation on the
+			 * same carrier and no context switch involves the OS scheduler.
+			 * Virtual threads are daemon threads, so the JVM's main thread
+			 * has to stay alive until Nachos exits.
+			 */
+			javaThread = newThread(new Runnable() {
+				public void run() {
+					threadroot();
+				}
+			});
+			javaThread.start();
+
+			while (true)
+				LockSupport.park(this);
+		}
 		else {
 			/*
 			 * This is the first TCB, so we don't need to make a new Java thread
@@ -216,6 +310,23 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	/**
+	 * Create an unstarted JVM thread, virtual or platform depending on
+	 * <tt>TCB.virtualThreads</tt>.
+	 */
+	private static Thread newThread(Runnable target) {
+		if (virtualThreadBuilder == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedMethod.invoke(virtualThreadBuilder, target);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("cannot create virtual thread: " + e);
+			return null;
+		}
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -291,32 +402,34 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * The handoff takes no locks: <tt>running</tt> is volatile, and
+	 * <tt>LockSupport</tt> keeps a permit for an <tt>unpark()</tt> that comes
+	 * before the <tt>park()</tt>, so a wakeup cannot be lost. Unlike waiting on
+	 * a monitor, parking does not pin the carrier of a virtual thread. Parking
+	 * can return spuriously, hence the loop.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
+	 * and unparking the Java thread bound to it. Used in the ping-pong process of
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -333,6 +446,73 @@ public final class TCB {
 			nachosThread = thread;
 	}
 
+	/**
+	 * A Java thread that runs one TCB after another. When its TCB is
+	 * destroyed, the thread goes back to the pool of idle threads instead of
+	 * dying, unless the pool already holds <tt>TCB.poolSize</tt> threads. An
+	 * idle thread that is not reused within <tt>TCB.poolIdleTimeout</tt>
+	 * milliseconds leaves the pool and dies.
+	 */
+	private static class PooledThread implements Runnable {
+		public void run() {
+			while (waitForTCB()) {
+				TCB tcb = assigned;
+				assigned = null;
+
+				tcb.threadroot();
+
+				if (numIdleThreads.incrementAndGet() > poolSize) {
+					numIdleThreads.decrementAndGet();
+					return;
+				}
+				idleThreads.addFirst(this);
+			}
+		}
+
+		/**
+		 * Hand a TCB to this thread, which must be waiting for one.
+		 */
+		void assign(TCB tcb) {
+			assigned = tcb;
+			LockSupport.unpark(javaThread);
+		}
+
+		/**
+		 * Wait until a TCB is assigned to this thread.
+		 * 
+		 * @return <tt>true</tt> if a TCB was assigned, or <tt>false</tt> if
+		 * the thread timed out and removed itself from the pool.
+		 */
+		private boolean waitForTCB() {
+			long deadline = System.nanoTime() + poolIdleTimeout * 1000000L;
+
+			while (assigned == null) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					/*
+					 * If start() has already taken us from the pool, a TCB is
+					 * on its way and we must wait for it.
+					 */
+					if (idleThreads.remove(this)) {
+						numIdleThreads.decrementAndGet();
+						return false;
+					}
+					LockSupport.park(this);
+				}
+				else {
+					LockSupport.parkNanos(this, remaining);
+				}
+			}
+
+			return true;
+		}
+
+		Thread javaThread;
+
+		/** The TCB this thread should run next. */
+		private volatile TCB assigned = null;
+	}
+
 	private static void authorizeDestroy(KThread thread) {
 		// make sure AutoGrader.finishingThread() gets called only once per
 		// destroy
@@ -346,6 +526,12 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's when they are backed
+	 * by virtual threads.
+	 */
+	public static final int maxVirtualThreads = 65536;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -379,6 +565,30 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/** The maximum number of idle Java threads kept for reuse. */
+	private static int poolSize;
+
+	/** Milliseconds an idle Java thread waits to be reused. */
+	private static int poolIdleTimeout;
+
+	/**
+	 * Idle pooled Java threads, most recently used first. Threads are added
+	 * by their own Java threads after their TCBs are destroyed, while another
+	 * TCB may be running, so this must be thread-safe.
+	 */
+	private static ConcurrentLinkedDeque<PooledThread> idleThreads = new ConcurrentLinkedDeque<PooledThread>();
+
+	private static AtomicInteger numIdleThreads = new AtomicInteger();
+
+	/**
+	 * The <tt>Thread.Builder</tt> used to create virtual threads, or
+	 * <tt>null</tt> if TCBs use platform threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	/** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+	private static Method unstartedMethod;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -403,7 +613,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -38,6 +38,11 @@ public final class Timer {
 			}
 		};
 
+		timerEvent = privilege.interrupt.createInterrupt("timer",
+				timerInterrupt);
+		autoGraderEvent = privilege.interrupt.createInterrupt("timerAG",
+				autoGraderInterrupt);
+
 		scheduleInterrupt();
 	}
 
@@ -74,11 +79,11 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		timerEvent.reschedule(delay);
 	}
 
 	private void scheduleAutoGraderInterrupt() {
-		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+		autoGraderEvent.reschedule(1);
 	}
 
 	private long lastTimerInterrupt;
@@ -87,6 +92,10 @@ public final class Timer {
 
 	private Runnable autoGraderInterrupt;
 
+	private Privilege.InterruptHandle timerEvent;
+
+	private Privilege.InterruptHandle autoGraderEvent;
+
 	private Privilege privilege;
 
 	private Runnable handler = null;
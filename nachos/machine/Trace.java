@@ -0,0 +1,530 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary trace of machine events. Unlike <tt>Lib.debug()</tt>, recording an
+ * event builds no strings and does no I/O: it stores a fixed-size record in a
+ * preallocated ring buffer. Tracing is therefore cheap enough to leave on in
+ * long runs.
+ *
+ * <p>
+ * <tt>Machine.trace</tt> selects which events to record, using the letters of
+ * the matching debug flags: <tt>m</tt> for instructions, <tt>p</tt> for
+ * address translations, <tt>i</tt> for interrupts, and <tt>t</tt> for thread
+ * switches. If <tt>Machine.traceAsync</tt> is <tt>true</tt> (the default), a
+ * background thread drains the buffer to <tt>Machine.traceFile</tt> as it
+ * fills. Otherwise the buffer acts as a flight recorder, and only the last
+ * <tt>Machine.traceRecords</tt> events are written when Nachos exits.
+ *
+ * <p>
+ * Run <tt>java nachos.machine.Trace <i>file</i></tt> to decode a trace, or
+ * <tt>java nachos.machine.Trace <i>file1 file2</i></tt> to compare two.
+ */
+public final class Trace {
+	/**
+	 * Prevent instantiation.
+	 */
+	private Trace() {
+	}
+
+	/**
+	 * Read the trace configuration and, if any events are enabled, allocate
+	 * the ring buffer and open the trace file. Called by <tt>Machine</tt>
+	 * before the devices are created.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	public static void initialize(final Privilege privilege) {
+		Lib.assertTrue(Trace.privilege == null);
+		Trace.privilege = privilege;
+
+		String events = Config.getString("Machine.trace", "");
+		for (int i = 0; i < events.length(); i++) {
+			int event = eventFlags.indexOf(events.charAt(i));
+			Lib.assertTrue(event > 0, "unknown trace event " + events.charAt(i));
+			enabled[event] = true;
+		}
+
+		if (events.length() == 0)
+			return;
+
+		int records = Config.getInteger("Machine.traceRecords",
+				defaultTraceRecords);
+		Lib.assertTrue(records > 0 && records <= (1 << 24));
+
+		capacity = Integer.highestOneBit(records);
+		if (capacity < records)
+			capacity <<= 1;
+		ring = new int[capacity * recordInts];
+
+		async = Config.getBoolean("Machine.traceAsync", true);
+
+		final String fileName = Config.getString("Machine.traceFile",
+				"nachos.trace");
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					channel = new FileOutputStream(fileName).getChannel();
+					buffer.clear();
+					buffer.putInt(magic);
+					buffer.putInt(version);
+					flushBuffer();
+				}
+				catch (IOException e) {
+					Lib.assertNotReached("cannot open trace file " + fileName);
+				}
+
+				if (async) {
+					drainer = new Thread(new Runnable() {
+						public void run() {
+							drain();
+						}
+					}, "trace drainer");
+					drainer.setDaemon(true);
+					drainer.start();
+				}
+			}
+		});
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Test whether the specified event is being recorded. Callers should test
+	 * before computing expensive arguments.
+	 *
+	 * @param event the event type; one of the <tt>event<i>*</i></tt>
+	 * constants.
+	 * @return <tt>true</tt> if the event is being recorded.
+	 */
+	public static boolean test(int event) {
+		return enabled[event];
+	}
+
+	/**
+	 * Record an event, stamped with the current simulated time. The meaning of
+	 * the arguments depends on the event type; see the <tt>event<i>*</i></tt>
+	 * constants.
+	 *
+	 * @param event the event type.
+	 * @param a the first argument.
+	 * @param b the second argument.
+	 * @param c the third argument.
+	 */
+	public static void record(int event, int a, int b, int c) {
+		if (!enabled[event])
+			return;
+
+		long sequence = next;
+
+		// with a drainer the buffer must not overwrite unwritten records
+		if (async) {
+			while (sequence - drained.get() >= capacity) {
+				// the drainer stops if the trace file cannot be written
+				if (closing)
+					return;
+
+				Thread.yield();
+			}
+		}
+
+		long time = privilege.stats.totalTicks;
+
+		int i = (int) (sequence & (capacity - 1)) * recordInts;
+		ring[i] = (int) (time >>> 32);
+		ring[i + 1] = (int) time;
+		ring[i + 2] = event;
+		ring[i + 3] = a;
+		ring[i + 4] = b;
+		ring[i + 5] = c;
+
+		next = sequence + 1;
+		published.lazySet(next);
+	}
+
+	/**
+	 * Return a small integer identifying the specified string, for use as an
+	 * event argument. The decoder prints the string in its place.
+	 *
+	 * @param s the string to intern.
+	 * @return the string's identifier.
+	 */
+	public static int intern(String s) {
+		synchronized (strings) {
+			Integer id = stringIds.get(s);
+			if (id == null) {
+				id = Integer.valueOf(strings.size());
+				strings.add(s);
+				stringIds.put(s, id);
+			}
+
+			return id.intValue();
+		}
+	}
+
+	private static void drain() {
+		while (!closing) {
+			if (!writeRecords(published.get()))
+				LockSupport.parkNanos(drainInterval);
+		}
+	}
+
+	/**
+	 * Write the records up to the specified sequence number that have not
+	 * been written yet, preceded by any strings they may refer to.
+	 *
+	 * @param end the sequence number after the last record to write.
+	 * @return <tt>true</tt> if anything was written.
+	 */
+	private static boolean writeRecords(long end) {
+		long start = drained.get();
+
+		// in flight recorder mode only the last records survive
+		start = Math.max(start, end - capacity);
+		if (start >= end)
+			return false;
+
+		try {
+			writeStrings();
+
+			buffer.clear();
+			for (long sequence = start; sequence < end; sequence++) {
+				if (buffer.remaining() < recordSize)
+					flushBuffer();
+
+				int i = (int) (sequence & (capacity - 1)) * recordInts;
+				buffer.putInt(ring[i]);
+				buffer.putInt(ring[i + 1]);
+				buffer.putInt(ring[i + 2]);
+				buffer.putInt(ring[i + 3]);
+				buffer.putInt(ring[i + 4]);
+				buffer.putInt(ring[i + 5]);
+			}
+			flushBuffer();
+		}
+		catch (IOException e) {
+			System.err.println("trace write failed: " + e);
+			closing = true;
+		}
+
+		drained.lazySet(end);
+		return true;
+	}
+
+	private static void writeStrings() throws IOException {
+		ArrayList<String> added = new ArrayList<String>();
+		synchronized (strings) {
+			added.addAll(strings.subList(stringsWritten, strings.size()));
+		}
+
+		for (String s : added) {
+			byte[] bytes = s.getBytes("UTF-8");
+
+			buffer.clear();
+			buffer.putLong(0);
+			buffer.putInt(eventString);
+			buffer.putInt(stringsWritten++);
+			buffer.putInt(bytes.length);
+			buffer.putInt(0);
+			flushBuffer();
+			channel.write(ByteBuffer.wrap(bytes));
+		}
+	}
+
+	private static void flushBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Stop the drainer, write any remaining records, and close the trace file.
+	 */
+	private static void close() {
+		if (channel == null)
+			return;
+
+		closing = true;
+		if (drainer != null) {
+			try {
+				drainer.join();
+			}
+			catch (InterruptedException e) {
+			}
+		}
+
+		writeRecords(next);
+
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+		}
+		channel = null;
+	}
+
+	/**
+	 * Decode a trace file and print its events, one per line. Given two trace
+	 * files, compare them instead, and print the first event at which they
+	 * differ.
+	 *
+	 * <p>
+	 * Comparing traces checks that two configurations run a program
+	 * identically, such as <tt>Processor.engine = block</tt> or
+	 * <tt>Processor.quantum = true</tt> against the reference interpreter.
+	 * Record both with <tt>Machine.trace = mipt</tt>. Instructions and address
+	 * translations are compared without their times, since the faster engines
+	 * charge a run of instructions after it ends. Everything else, including
+	 * when each interrupt is delivered, must match.
+	 *
+	 * @param args the name of the trace file, or the names of the two trace
+	 * files to compare.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 2)
+			System.exit(compare(args[0], args[1]) ? 0 : 1);
+
+		if (args.length != 1) {
+			System.err.println("usage: java nachos.machine.Trace <file> [<file>]");
+			System.exit(1);
+		}
+
+		TraceReader in = new TraceReader(args[0]);
+
+		while (in.next())
+			System.out.println(in.time + "\t" + in.text);
+
+		in.close();
+	}
+
+	/**
+	 * Compare two trace files, as described for <tt>main()</tt>.
+	 *
+	 * @param fileName1 the first trace file.
+	 * @param fileName2 the second trace file.
+	 * @return <tt>true</tt> if the traces match.
+	 */
+	private static boolean compare(String fileName1, String fileName2)
+			throws IOException {
+		TraceReader in1 = new TraceReader(fileName1);
+		TraceReader in2 = new TraceReader(fileName2);
+
+		long count = 0;
+		boolean match = true;
+
+		while (true) {
+			boolean more1 = in1.next();
+			boolean more2 = in2.next();
+
+			if (!more1 && !more2) {
+				System.out.println(count + " events match");
+				break;
+			}
+
+			if (more1 != more2) {
+				System.out.println("traces differ after " + count
+						+ " events: " + (more1 ? fileName2 : fileName1)
+						+ " ends first");
+				match = false;
+				break;
+			}
+
+			count++;
+
+			boolean timed = in1.event != eventInstruction
+					&& in1.event != eventTranslate;
+
+			if (in1.event != in2.event || !in1.text.equals(in2.text)
+					|| (timed && in1.time != in2.time)) {
+				System.out.println("traces differ at event " + count + ":");
+				System.out.println(fileName1 + ":\t" + in1.time + "\t" + in1.text);
+				System.out.println(fileName2 + ":\t" + in2.time + "\t" + in2.text);
+				match = false;
+				break;
+			}
+		}
+
+		in1.close();
+		in2.close();
+		return match;
+	}
+
+	/**
+	 * Reads the events in a trace file, one at a time.
+	 */
+	private static class TraceReader {
+		TraceReader(String fileName) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(fileName)));
+
+			if (in.readInt() != magic || in.readInt() != version) {
+				System.err.println(fileName + ": not a Nachos trace");
+				System.exit(1);
+			}
+		}
+
+		/**
+		 * Read the next event.
+		 *
+		 * @return <tt>true</tt> if there was another event, <tt>false</tt> at
+		 * the end of the file.
+		 */
+		boolean next() throws IOException {
+			try {
+				while (true) {
+					time = in.readLong();
+					event = in.readInt();
+					int a = in.readInt();
+					int b = in.readInt();
+					int c = in.readInt();
+
+					if (event == eventString) {
+						byte[] bytes = new byte[b];
+						in.readFully(bytes);
+						names.put(Integer.valueOf(a), new String(bytes, "UTF-8"));
+						continue;
+					}
+
+					text = decode(event, a, b, c, names);
+					return true;
+				}
+			}
+			catch (EOFException e) {
+				return false;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		private DataInputStream in;
+
+		private HashMap<Integer, String> names = new HashMap<Integer, String>();
+
+		long time;
+
+		int event;
+
+		String text;
+	}
+
+	private static String decode(int event, int a, int b, int c,
+			HashMap<Integer, String> names) {
+		switch (event) {
+		case eventInstruction:
+			return "inst\tPC=0x" + Lib.toHexString(a) + "\t0x"
+					+ Lib.toHexString(b);
+		case eventTranslate:
+			return "xlate\tvaddr=0x" + Lib.toHexString(a) + "\tpaddr=0x"
+					+ Lib.toHexString(b) + (c != 0 ? "\twrite" : "\tread");
+		case eventInterrupt:
+			return "intr\t" + (b == 0 ? "schedule " : "invoke ")
+					+ names.get(Integer.valueOf(a))
+					+ (b == 0 ? " at time = " + c : "");
+		case eventSwitch:
+			return "switch\t#" + a + " -> #" + b + " ("
+					+ names.get(Integer.valueOf(c)) + ")";
+		default:
+			return "unknown event " + event;
+		}
+	}
+
+	/** Defines a string: a is its identifier, b its length in bytes. */
+	public static final int eventString = 0;
+
+	/** An instruction was executed: a is the PC, b the instruction word. */
+	public static final int eventInstruction = 1;
+
+	/**
+	 * A virtual address was translated: a is the virtual address, b the
+	 * physical address, c is 1 for a write.
+	 */
+	public static final int eventTranslate = 2;
+
+	/**
+	 * An interrupt was scheduled or invoked: a is its interned type, b is 0
+	 * when scheduled and 1 when invoked, and c the time it is due.
+	 */
+	public static final int eventInterrupt = 3;
+
+	/**
+	 * A thread switch: a and b identify the old and new threads, and c is the
+	 * new thread's interned name.
+	 */
+	public static final int eventSwitch = 4;
+
+	/** The <tt>Machine.trace</tt> letter for each event type. */
+	private static final String eventFlags = " mpit";
+
+	private static boolean[] enabled = new boolean[eventFlags.length()];
+
+	private static Privilege privilege = null;
+
+	/** Each record is the time as two ints, then the event and arguments. */
+	private static final int recordInts = 6;
+
+	private static final int recordSize = recordInts * 4;
+
+	private static int[] ring;
+
+	/** The number of records in the ring, a power of two. */
+	private static int capacity;
+
+	private static boolean async;
+
+	/** The sequence number of the next record, owned by the writer. */
+	private static long next = 0;
+
+	/** The sequence number after the last record visible to the drainer. */
+	private static AtomicLong published = new AtomicLong();
+
+	/** The sequence number after the last record written to the file. */
+	private static AtomicLong drained = new AtomicLong();
+
+	private static ArrayList<String> strings = new ArrayList<String>();
+
+	private static HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+
+	/** The number of strings already written to the file. */
+	private static int stringsWritten = 0;
+
+	private static FileChannel channel = null;
+
+	private static ByteBuffer buffer = ByteBuffer.allocate(recordSize * 1024);
+
+	private static Thread drainer = null;
+
+	private static volatile boolean closing = false;
+
+	private static final int defaultTraceRecords = 0x10000;
+
+	/** Nanoseconds the drainer sleeps when the buffer is empty. */
+	private static final long drainInterval = 1000000;
+
+	private static final int magic = 0x4E545243;
+
+	private static final int version = 1;
+}
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,10 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address space identifier. A TLB entry is only used while the
+	 * processor's current identifier matches it; page table entries ignore it.
+	 */
+	public int asid;
 }
@@ -13,6 +13,8 @@ import java.awt.AWTPermission;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.security.PrivilegedActionException;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * Protects the environment from malicious Nachos code.
@@ -122,6 +124,29 @@ public class NachosSecurityManager extends SecurityManager {
 		return (privileged == Thread.currentThread());
 	}
 
+	/**
+	 * Test whether the current permission check is on behalf of the JVM
+	 * creating a carrier thread for virtual threads. This happens whenever the
+	 * virtual thread scheduler needs a new carrier, even in a Nachos thread
+	 * without privilege. Kernel code cannot create carrier threads itself.
+	 * 
+	 * <p>
+	 * Only the permissions a carrier needs are considered, and the stack is
+	 * only walked once the permission matches.
+	 */
+	private boolean isCreatingCarrierThread(RuntimePermission perm) {
+		if (!carrierPermissions.contains(perm.getName()))
+			return false;
+
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (int i = 0; i < stack.length; i++) {
+			if (stack[i].getClassName().equals(carrierThreadClassName))
+				return true;
+		}
+
+		return false;
+	}
+
 	private void doPrivileged(final Runnable action) {
 		doPrivileged(new PrivilegedAction() {
 			public Object run() {
@@ -212,6 +237,11 @@ public class NachosSecurityManager extends SecurityManager {
 			}
 		}
 
+		// the JVM starts carrier threads for virtual thread TCBs on demand
+		if (perm instanceof RuntimePermission
+				&& isCreatingCarrierThread((RuntimePermission) perm))
+			return;
+
 		// some are always allowed
 		if (perm instanceof PropertyPermission) {
 			// allowed to read properties
@@ -313,6 +343,13 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private File testDirectory;
 
+	private static final String carrierThreadClassName = "jdk.internal.misc.CarrierThread";
+
+	/** The runtime permissions checked when a carrier thread starts. */
+	private static final HashSet<String> carrierPermissions = new HashSet<String>(
+			Arrays.asList(new String[] { "modifyThread", "modifyThreadGroup",
+					"setContextClassLoader", "enableContextClassLoaderOverride" }));
+
 	private boolean fullySecure;
 
 	private Thread privileged = null;
@@ -135,6 +135,49 @@ public abstract class Privilege {
 		public void setConsole(SerialConsole console);
 	}
 
+	/**
+	 * A reusable interrupt, created by
+	 * <tt>InterruptPrivilege.createInterrupt()</tt>. Scheduling, rescheduling
+	 * and canceling each take O(log n) time in the number of pending
+	 * interrupts.
+	 */
+	public interface InterruptHandle {
+		/**
+		 * Schedule this interrupt to occur at some time in the future. If it
+		 * is already pending, it is moved to the new time.
+		 * 
+		 * @param when the number of ticks until the interrupt should occur.
+		 */
+		public void reschedule(long when);
+
+		/**
+		 * Cancel this interrupt if it is pending.
+		 * 
+		 * @return <tt>true</tt> if the interrupt was pending.
+		 */
+		public boolean cancel();
+
+		/**
+		 * Test whether this interrupt is pending.
+		 * 
+		 * @return <tt>true</tt> if the interrupt is scheduled and has not yet
+		 * occurred.
+		 */
+		public boolean isPending();
+
+		/**
+		 * Schedule this interrupt from a host thread other than the one
+		 * running Nachos, for a device that learns of an event, such as an
+		 * arriving packet, asynchronously. The interrupt is scheduled
+		 * <i>when</i> ticks after simulated time next advances. This is the
+		 * only method of this interface that is safe to call from another
+		 * thread.
+		 * 
+		 * @param when the number of ticks until the interrupt should occur.
+		 */
+		public void post(long when);
+	}
+
 	/**
 	 * An interface that provides access to some private <tt>Interrupt</tt>
 	 * methods.
@@ -149,6 +192,17 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Create an interrupt that is not yet scheduled, for a device that
+		 * needs to cancel or move its interrupts. The handle can be scheduled
+		 * any number of times; it stays valid after the interrupt fires.
+		 * 
+		 * @param type a name for the type of interrupt.
+		 * @param handler the interrupt handler to call.
+		 * @return a handle for the new interrupt.
+		 */
+		public InterruptHandle createInterrupt(String type, Runnable handler);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -157,6 +211,31 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by <i>count</i> ticks at once. Pending
+		 * interrupts that fall due during those ticks are delivered when the
+		 * last tick has been accounted.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of ticks until the earliest pending interrupt is
+		 * due. A device that runs for that many ticks without calling
+		 * <tt>tick()</tt> can then account them in one batch without
+		 * delivering any interrupt late. An interrupt posted by a host
+		 * thread counts as already due, since it is only scheduled by the
+		 * next tick.
+		 * 
+		 * @return the number of ticks until the next interrupt, <tt>0</tt> if
+		 * one is already due, or <tt>Long.MAX_VALUE</tt> if none are pending.
+		 */
+		public long ticksUntilDue();
 	}
 
 	/**
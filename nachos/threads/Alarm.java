@@ -1,11 +1,17 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary min-heap ordered by wake time, held in
+ * parallel arrays so that wake times are not boxed. A timer interrupt only
+ * looks at the threads that are due, so waking <i>k</i> of <i>n</i> sleeping
+ * threads takes O(<i>k</i> log <i>n</i>) time.
  */
 public class Alarm {
 	/**
@@ -15,39 +21,30 @@ public class Alarm {
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
-  private ArrayList<KThread> waitingThreads;
-  private ArrayList<Long> wakeTimes;
-
 	public Alarm() {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
 			}
 		});
-    waitingThreads = new ArrayList<KThread>();
-    wakeTimes = new ArrayList<Long>();
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes up every
+	 * sleeping thread that is due, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
+		long time = Machine.timer().getTime();
+
+		while (numSleepers > 0 && wakeTimes[0] <= time) {
+			KThread thread = sleepers[0];
+			removeFirst();
+			thread.ready();
+		}
+
 		KThread.currentThread().yield();
-    for(int i = 0; i < waitingThreads.size(); i++)
-    {
-      if(wakeTimes.get(i) < Machine.timer().getTime())
-      {
-        Machine.interrupt().disable();
-        waitingThreads.get(i).ready();
-        Machine.interrupt().enable();
-        waitingThreads.remove(i);
-        wakeTimes.remove(i);
-        i--;
-      }
-    }
 	}
 
 	/**
@@ -63,13 +60,71 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
 		long wakeTime = Machine.timer().getTime() + x;
-    waitingThreads.add(KThread.currentThread());
-    wakeTimes.add(wakeTime);
-    Machine.interrupt().disable();
-    KThread.sleep();
-    Machine.interrupt().enable();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		add(KThread.currentThread(), wakeTime);
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Add a sleeping thread to the heap.
+	 */
+	private void add(KThread thread, long wakeTime) {
+		if (numSleepers == sleepers.length) {
+			sleepers = Arrays.copyOf(sleepers, numSleepers * 2);
+			wakeTimes = Arrays.copyOf(wakeTimes, numSleepers * 2);
+		}
+
+		// sift the hole up from the end
+		int i = numSleepers++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (wakeTimes[parent] <= wakeTime)
+				break;
+
+			sleepers[i] = sleepers[parent];
+			wakeTimes[i] = wakeTimes[parent];
+			i = parent;
+		}
+
+		sleepers[i] = thread;
+		wakeTimes[i] = wakeTime;
+	}
+
+	/**
+	 * Remove the thread with the earliest wake time from the heap.
+	 */
+	private void removeFirst() {
+		int last = --numSleepers;
+		KThread thread = sleepers[last];
+		long wakeTime = wakeTimes[last];
+		sleepers[last] = null;
+
+		if (last == 0)
+			return;
+
+		// sift the hole down from the root
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= last)
+				break;
+			if (child + 1 < last && wakeTimes[child + 1] < wakeTimes[child])
+				child++;
+			if (wakeTime <= wakeTimes[child])
+				break;
+
+			sleepers[i] = sleepers[child];
+			wakeTimes[i] = wakeTimes[child];
+			i = child;
+		}
+
+		sleepers[i] = thread;
+		wakeTimes[i] = wakeTime;
 	}
 
   public static void selfTest() {
@@ -87,5 +142,57 @@ public class Alarm {
     t1.setName("T1");
     t1.fork();
     t1.join();
+
+    heapTest();
   }
+
+	/**
+	 * Put more threads to sleep than the heap starts out holding, out of
+	 * order of their wake times and several to a wake time, and check that
+	 * every thread due by the time one wakes up was woken up with it.
+	 */
+	private static void heapTest() {
+		final Alarm alarm = ThreadedKernel.alarm;
+		final long start = Machine.timer().getTime() + 20000;
+
+		KThread[] threads = new KThread[3 * initialCapacity];
+
+		for (int i = 0; i < threads.length; i++) {
+			final long wakeTime = start + (i * 7 % threads.length) / 4 * 1000;
+
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					alarm.waitUntil(wakeTime - Machine.timer().getTime());
+
+					Lib.assertTrue(Machine.timer().getTime() >= wakeTime,
+							" thread woke up too early.");
+
+					boolean intStatus = Machine.interrupt().disable();
+					for (int j = 0; j < alarm.numSleepers; j++) {
+						Lib.assertTrue(alarm.wakeTimes[j] > wakeTime,
+								" a thread due no later is still asleep.");
+					}
+					Machine.interrupt().restore(intStatus);
+				}
+			});
+			threads[i].setName("sleeper " + i).fork();
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(alarm.numSleepers == 0
+				&& alarm.sleepers.length > initialCapacity,
+				" sleepers were not all held at once.");
+	}
+
+	/** The sleeping threads, a min-heap on <tt>wakeTimes</tt>. */
+	private KThread[] sleepers = new KThread[initialCapacity];
+
+	/** The time at which each sleeping thread is due. */
+	private long[] wakeTimes = new long[initialCapacity];
+
+	private int numSleepers = 0;
+
+	private static final int initialCapacity = 16;
 }
@@ -0,0 +1,584 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multilevel feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, level 0 being the most urgent.
+ * The next thread to be dequeued is the thread that has been waiting longest
+ * at the most urgent nonempty level. A new thread starts at level 0.
+ *
+ * <p>
+ * The scheduler charges the running thread for the ticks it uses. A thread
+ * that uses up its allotment at a level, which is
+ * <tt>FeedbackScheduler.quantum</tt> ticks at level 0 and doubles at each
+ * level below, is demoted one level. The allotment counts every tick the
+ * thread runs at that level, over as many time slices as it takes, rather
+ * than whether a single slice ended in a timer preemption. A thread cannot
+ * stay at a high level by yielding just before the timer fires, and a
+ * CPU-bound thread, which only gives up the processor when the timer preempts
+ * it, sinks just the same. A thread that
+ * blocks, and is woken up by another thread, before using up its allotment is
+ * promoted one level, so threads that spend most of their time waiting for
+ * I/O, such as those reading the console, rise above the CPU-bound ones.
+ * Every <tt>FeedbackScheduler.boostInterval</tt> ticks, every thread is moved
+ * back to level 0, so that no thread starves.
+ *
+ * <p>
+ * The scheduler keeps statistics for each level, which it prints when the
+ * kernel terminates. Levels are not donated, so <i>transferPriority</i> is
+ * ignored.
+ */
+public class FeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new feedback scheduler.
+	 */
+	public FeedbackScheduler() {
+		numLevels = Config.getInteger("FeedbackScheduler.levels", 8);
+		quantum = Config.getInteger("FeedbackScheduler.quantum",
+				Stats.TimerTicks);
+		boostInterval = Config.getInteger("FeedbackScheduler.boostInterval",
+				100 * quantum);
+
+		Lib.assertTrue(numLevels >= 1 && numLevels <= 32);
+		Lib.assertTrue(quantum > 0 && boostInterval >= 0);
+
+		nextBoost = boostInterval;
+
+		queued = new int[numLevels];
+		slices = new long[numLevels];
+		ticks = new long[numLevels];
+		occupancy = new long[numLevels];
+		promotions = new long[numLevels];
+		demotions = new long[numLevels];
+	}
+
+	/**
+	 * Allocate a new multilevel queue.
+	 *
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new multilevel thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread, which is one less than the
+	 * number of levels at level 0, and one less again at each level below.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+
+		// a boost the thread has not seen yet has still moved it to level 0
+		int level = (state.boostNumber == boostNumber ? state.level : 0);
+
+		return numLevels - 1 - level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Move the specified thread to the level for the specified priority,
+	 * with a fresh allotment.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= numLevels - 1);
+
+		chargeCurrentThread();
+
+		ThreadState state = getThreadState(thread);
+		applyBoost(state);
+		state.setLevel(numLevels - 1 - priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == numLevels - 1)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Print, for each level, the number of time slices run and their average
+	 * length, the average number of threads queued at that level when a
+	 * thread is dispatched, and the number of threads promoted to and demoted
+	 * to that level.
+	 */
+	public void print() {
+		long dispatches = 0;
+		for (int level = 0; level < numLevels; level++)
+			dispatches += slices[level];
+
+		for (int level = 0; level < numLevels; level++) {
+			if (slices[level] == 0 && promotions[level] == 0
+					&& demotions[level] == 0)
+				continue;
+
+			System.out.println("Level " + level + ": slices "
+					+ slices[level] + ", ticks " + ticks[level]
+					+ ", average slice "
+					+ (slices[level] != 0 ? ticks[level] / slices[level] : 0)
+					+ ", average queued "
+					+ (dispatches != 0 ? Math.round(100.0 * occupancy[level]
+							/ dispatches) / 100.0 : 0.0) + ", promoted "
+					+ promotions[level] + ", demoted " + demotions[level]);
+		}
+
+		System.out.println("Priority boosts: " + boosts);
+	}
+
+	/**
+	 * Test demotion, promotion and boosts on a private scheduler, with
+	 * threads that are never forked. Elapsed ticks are simulated by moving
+	 * <tt>lastCharge</tt> back while interrupts are disabled, and the current
+	 * thread's real scheduling state is put back afterwards.
+	 */
+	public static void selfTest() {
+		FeedbackScheduler scheduler = new FeedbackScheduler();
+		Lib.assertTrue(scheduler.numLevels >= 3,
+				" selfTest needs at least three levels.");
+
+		int top = scheduler.numLevels - 1;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread current = KThread.currentThread();
+		Object kernelState = current.schedulingState;
+		current.schedulingState = null;
+
+		// no boosts until the test asks for one
+		scheduler.boostInterval = 0;
+
+		// the current thread uses its level 0 allotment, one tick at a time
+		scheduler.setPriority(current, top);
+		scheduler.lastCharge -= scheduler.quantum - 1;
+		scheduler.chargeCurrentThread();
+		Lib.assertTrue(scheduler.getPriority(current) == top,
+				" demoted before using up the allotment.");
+		scheduler.lastCharge -= 1;
+		scheduler.chargeCurrentThread();
+		Lib.assertTrue(scheduler.getPriority(current) == top - 1,
+				" not demoted after using up the allotment.");
+
+		// woken threads move up one level: a to level 1, b and c to level 0
+		FeedbackQueue queue = (FeedbackQueue) scheduler.newThreadQueue(false);
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		scheduler.setPriority(a, top - 2);
+		scheduler.setPriority(b, top - 1);
+		scheduler.setPriority(c, top - 1);
+		queue.waitForAccess(a);
+		queue.waitForAccess(b);
+		queue.waitForAccess(c);
+		Lib.assertTrue(scheduler.getPriority(a) == top - 1,
+				" woken thread was not promoted.");
+		Lib.assertTrue(queue.nextThread() == b && queue.nextThread() == c
+				&& queue.nextThread() == a,
+				" queue did not serve level 0 first, in FIFO order.");
+
+		// a boost falls due just as c arrives at level 0; a and b wait at
+		// level 1, and must be moved ahead of c
+		scheduler.setPriority(a, top - 2);
+		scheduler.setPriority(b, top - 2);
+		scheduler.setPriority(c, top);
+		queue.waitForAccess(a);
+		queue.waitForAccess(b);
+		scheduler.boostInterval = 1;
+		scheduler.nextBoost = 0;
+		queue.waitForAccess(c);
+		Lib.assertTrue(queue.nextThread() == a && queue.nextThread() == b
+				&& queue.nextThread() == c,
+				" boost did not move waiting threads to level 0 in order.");
+		Lib.assertTrue(scheduler.boosts == 1);
+
+		current.schedulingState = kernelState;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 0;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Apply any priority boost the specified thread has missed. A thread in a
+	 * queue is boosted along with the rest of that queue.
+	 *
+	 * @param state the scheduling state of the thread.
+	 */
+	private void applyBoost(ThreadState state) {
+		if (state.boostNumber == boostNumber)
+			return;
+
+		if (state.waitingOn != null)
+			state.waitingOn.boost();
+		else
+			state.boost();
+	}
+
+	/**
+	 * Return the number of ticks a thread may use at the specified level
+	 * before it is demoted.
+	 */
+	private long allotment(int level) {
+		return (long) quantum << level;
+	}
+
+	/**
+	 * Charge the current thread for the ticks since the last charge, demoting
+	 * it if it has used up its allotment, and start a priority boost if one
+	 * is due.
+	 *
+	 * <p>
+	 * Every context switch goes through <tt>nextThread()</tt> on the ready
+	 * queue, which calls this method just before the switch, and no time
+	 * passes between that call and the switch. So whatever time has passed
+	 * since the last call belongs to the thread that is running now.
+	 */
+	private void chargeCurrentThread() {
+		long now = Machine.timer().getTime();
+		long elapsed = now - lastCharge;
+		lastCharge = now;
+
+		KThread thread = KThread.currentThread();
+		if (thread == null)
+			return;
+
+		ThreadState state = getThreadState(thread);
+
+		// a queued thread is boosted with its queue, when that is next used
+		if (state.waitingOn == null)
+			applyBoost(state);
+
+		// a different thread is running, so a new time slice has begun
+		if (thread != lastThread) {
+			lastThread = thread;
+			slices[state.level]++;
+			for (int level = 0; level < numLevels; level++)
+				occupancy[level] += queued[level];
+		}
+
+		// a queued thread's level must not change; it can only be queued
+		// here if it yielded, and then no time has passed
+		if (elapsed > 0 && state.waitingOn == null) {
+			ticks[state.level] += elapsed;
+			state.used += elapsed;
+
+			if (state.used >= allotment(state.level)
+					&& state.level < numLevels - 1) {
+				// the rest of the run is a new time slice at the new level
+				state.setLevel(state.level + 1);
+				demotions[state.level]++;
+				slices[state.level]++;
+			}
+		}
+
+		if (boostInterval > 0 && now >= nextBoost) {
+			boostNumber++;
+			boosts++;
+			nextBoost = now + boostInterval;
+		}
+	}
+
+	private int numLevels;
+
+	/** The allotment at level 0, in ticks. */
+	private int quantum;
+
+	/** The ticks between priority boosts, or 0 to never boost. */
+	private int boostInterval;
+
+	/** The time at which the next priority boost is due. */
+	private long nextBoost;
+
+	/** Incremented by each priority boost. */
+	private int boostNumber = 0;
+
+	/** The time of the last call to <tt>chargeCurrentThread()</tt>. */
+	private long lastCharge = 0;
+
+	/** The thread that was running at that time. */
+	private KThread lastThread = null;
+
+	/** The number of threads waiting at each level, over all queues. */
+	private int[] queued;
+
+	/** The number of time slices run at each level. */
+	private long[] slices;
+
+	/** The ticks run at each level. */
+	private long[] ticks;
+
+	/** The sum over all dispatches of the threads queued at each level. */
+	private long[] occupancy;
+
+	/** The number of threads promoted to each level. */
+	private long[] promotions;
+
+	/** The number of threads demoted to each level. */
+	private long[] demotions;
+
+	private long boosts = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 *
+	 * <p>
+	 * Waiting threads are linked through their <tt>ThreadState</tt>s, and a
+	 * bitmap records which lists are nonempty, so that adding and removing a
+	 * thread are O(1). A priority boost is applied to a queue the next time it
+	 * is used, by moving its threads to level 0 in the order they would have
+	 * been dequeued.
+	 */
+	protected class FeedbackQueue extends ThreadQueue {
+		FeedbackQueue() {
+			heads = new ThreadState[numLevels];
+			tails = new ThreadState[numLevels];
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+			boost();
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			applyBoost(state);
+
+			// woken up by another thread before using up its allotment
+			if (thread != KThread.currentThread() && state.level > 0
+					&& state.used < allotment(state.level)) {
+				state.setLevel(state.level - 1);
+				promotions[state.level]++;
+			}
+
+			state.waitingOn = this;
+			add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+			boost();
+
+			if (occupied == 0)
+				return null;
+
+			ThreadState state = heads[Integer.numberOfTrailingZeros(occupied)];
+			remove(state);
+			state.waitingOn = null;
+
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Levels are not
+		 * donated, so there is nothing to record.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState s = heads[level]; s != null; s = s.nextWaiter)
+					System.out.print(s.thread + " (" + level + ") ");
+			}
+		}
+
+		/**
+		 * Apply any priority boost this queue has missed.
+		 */
+		void boost() {
+			if (queueBoostNumber == boostNumber)
+				return;
+
+			queueBoostNumber = boostNumber;
+
+			for (ThreadState s = heads[0]; s != null; s = s.nextWaiter)
+				s.boost();
+
+			for (int level = 1; level < numLevels; level++) {
+				while (heads[level] != null) {
+					ThreadState state = heads[level];
+					remove(state);
+					state.boost();
+					add(state);
+				}
+			}
+		}
+
+		/**
+		 * Append a thread to the list for its level.
+		 */
+		void add(ThreadState state) {
+			int level = state.level;
+
+			state.nextWaiter = null;
+			state.prevWaiter = tails[level];
+			if (tails[level] != null)
+				tails[level].nextWaiter = state;
+			else
+				heads[level] = state;
+			tails[level] = state;
+
+			occupied |= 1 << level;
+			queued[level]++;
+		}
+
+		/**
+		 * Unlink a thread from the list for its level.
+		 */
+		void remove(ThreadState state) {
+			int level = state.level;
+
+			if (state.prevWaiter != null)
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+			else
+				heads[level] = state.nextWaiter;
+
+			if (state.nextWaiter != null)
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+			else
+				tails[level] = state.prevWaiter;
+
+			state.prevWaiter = state.nextWaiter = null;
+
+			if (heads[level] == null)
+				occupied &= ~(1 << level);
+			queued[level]--;
+		}
+
+		/** The first waiting thread at each level. */
+		private ThreadState[] heads;
+
+		/** The last waiting thread at each level. */
+		private ThreadState[] tails;
+
+		/** Bit <i>l</i> is set if a thread is waiting at level <i>l</i>. */
+		private int occupied = 0;
+
+		/** The value of <tt>boostNumber</tt> when this queue was boosted. */
+		private int queueBoostNumber = boostNumber;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, the ticks it has used
+	 * there, and the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Move the associated thread to the specified level, with a fresh
+		 * allotment.
+		 *
+		 * @param level the new level.
+		 */
+		void setLevel(int level) {
+			if (waitingOn != null)
+				waitingOn.remove(this);
+
+			this.level = level;
+			used = 0;
+
+			if (waitingOn != null)
+				waitingOn.add(this);
+		}
+
+		/**
+		 * Apply a priority boost to the associated thread, which must not be
+		 * in a queue.
+		 */
+		void boost() {
+			level = 0;
+			used = 0;
+			boostNumber = FeedbackScheduler.this.boostNumber;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the associated thread. */
+		protected int level = 0;
+
+		/** The ticks the associated thread has used at its level. */
+		protected long used = 0;
+
+		/** The value of <tt>boostNumber</tt> when this thread was boosted. */
+		private int boostNumber = FeedbackScheduler.this.boostNumber;
+
+		/** The queue the associated thread is waiting on, if any. */
+		private FeedbackQueue waitingOn = null;
+
+		private ThreadState prevWaiter = null;
+
+		private ThreadState nextWaiter = null;
+	}
+}
@@ -273,8 +273,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -307,14 +309,31 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * If <tt>ThreadedKernel.idleFastForward</tt> is <tt>true</tt>, the idle
+	 * thread does not spin through simulated time waiting for an interrupt.
+	 * Whenever it finds no other thread ready, it advances simulated time
+	 * straight to the next interrupt with <tt>Interrupt.idle()</tt>.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		idleFastForward = Config.getBoolean("ThreadedKernel.idleFastForward",
+				false);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (idleFastForward) {
+						boolean intStatus = Machine.interrupt().disable();
+						if (numReadyThreads == 0)
+							Machine.interrupt().idle();
+						Machine.interrupt().restore(intStatus);
+					}
+
 					yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -330,7 +349,9 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread != null)
+			numReadyThreads--;
+		else
 			nextThread = idleThread;
 
 		nextThread.run();
@@ -365,6 +386,10 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		if (Trace.test(Trace.eventSwitch))
+			Trace.record(Trace.eventSwitch, currentThread.id, id,
+					Trace.intern(name));
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -539,5 +564,11 @@ private static class JoinTest implements Runnable
 
 	private static KThread idleThread = null;
 
+	/** <tt>true</tt> if the idle thread skips ahead to the next interrupt. */
+	private static boolean idleFastForward = false;
+
+	/** The number of threads in the ready queue. */
+	private static int numReadyThreads = 0;
+
   private KThread waitingThread = null;
 }
@@ -41,7 +41,424 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test a lottery queue directly, using threads that are never forked.
+	 * Three threads holding 100, 200 and 700 tickets wait on a queue; the
+	 * holder must have their tickets added to its own, and repeated draws
+	 * must pick each waiter in proportion to its tickets.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+		int[] tickets = { 100, 200, 700 };
+		KThread[] waiters = new KThread[tickets.length];
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryQueue queue = (LotteryQueue) scheduler.newThreadQueue(true);
+		KThread holder = new KThread().setName("holder");
+		queue.acquire(holder);
+
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread().setName("waiter " + i);
+			scheduler.setPriority(waiters[i], tickets[i]);
+			queue.waitForAccess(waiters[i]);
+		}
+
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1001,
+				" waiting tickets were not added to the holder.");
+
+		int draws = 10000;
+		int[] wins = new int[waiters.length];
+		for (int i = 0; i < draws; i++) {
+			KThread winner = queue.pickNextThread().thread;
+			for (int j = 0; j < waiters.length; j++) {
+				if (winner == waiters[j])
+					wins[j]++;
+			}
+		}
+
+		for (int i = 0; i < waiters.length; i++) {
+			System.out.println(waiters[i] + " won " + wins[i] + " of "
+					+ draws + " draws");
+			Lib.assertTrue(Math.abs(wins[i] - tickets[i] * draws / 1000)
+					< draws / 50, " draws are not weighted by tickets.");
+		}
+
+		// the winner takes over the queue, and the tickets still waiting
+		KThread winner = queue.nextThread();
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1,
+				" the previous holder kept donated tickets.");
+		Lib.assertTrue(scheduler.getEffectivePriority(winner) == 1000,
+				" the new holder did not get the remaining tickets.");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The default number of tickets for a new thread. Do not change this
+	 * value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * The number of the current ticket transfer, used to stop a transfer that
+	 * goes around a cycle of waiting threads.
+	 */
+	private int transferNumber = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+	 * so that drawing the winner and changing a thread's tickets both take
+	 * O(log n) time in the number of waiting threads. Slots are recycled,
+	 * and the tree doubles in size when it runs out.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryThreadState next = draw();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery and return the winner, without modifying the state
+		 * of this queue. Since the lottery is random, <tt>nextThread()</tt>
+		 * may choose a different thread.
+		 * 
+		 * @return a thread chosen at random, weighted by tickets, or
+		 * <tt>null</tt> if no threads are waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			return draw();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numSlots; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ("
+							+ slots[i].queuedTickets + ") ");
+			}
+		}
+
+		/**
+		 * Draw a waiting thread with probability proportional to its tickets.
+		 */
+		private LotteryThreadState draw() {
+			if (numWaiting == 0)
+				return null;
+
+			long ticket = Math.min((long) (Lib.random() * totalTickets),
+					totalTickets - 1);
+
+			// find the first slot whose prefix sum exceeds ticket
+			int index = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (index + step <= capacity && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			Lib.assertTrue(slots[index] != null);
+			return slots[index];
+		}
+
+		/**
+		 * Give a thread a slot, and donate its tickets to the holder.
+		 */
+		void add(LotteryThreadState state) {
+			int slot;
+			if (numFree > 0) {
+				slot = freeSlots[--numFree];
+			}
+			else {
+				if (numSlots == capacity)
+					grow();
+				slot = numSlots++;
+			}
+
+			slots[slot] = state;
+			state.slot = slot;
+			state.queuedTickets = 0;
+			numWaiting++;
+
+			adjust(state, state.effectiveTickets);
+			if (transferPriority && owner != null)
+				owner.transferTickets(state.effectiveTickets);
+		}
+
+		/**
+		 * Free a thread's slot, and withdraw its tickets from the holder.
+		 */
+		void remove(LotteryThreadState state) {
+			long tickets = state.queuedTickets;
+			adjust(state, -tickets);
+			if (transferPriority && owner != null)
+				owner.transferTickets(-tickets);
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+			numWaiting--;
+
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Change the tickets counted for a waiting thread. The caller passes
+		 * the change on to the holder.
+		 */
+		void adjust(LotteryThreadState state, long delta) {
+			for (int i = state.slot + 1; i <= capacity; i += i & -i)
+				tree[i] += delta;
+
+			state.queuedTickets += delta;
+			totalTickets += delta;
+		}
+
+		/**
+		 * Make a thread the holder of this queue, moving the donated
+		 * tickets from the previous holder.
+		 */
+		void setOwner(LotteryThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null)
+				owner.transferTickets(-totalTickets);
+
+			owner = state;
+
+			if (owner != null)
+				owner.transferTickets(totalTickets);
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree in linear time.
+		 */
+		private void grow() {
+			capacity *= 2;
+
+			LotteryThreadState[] newSlots = new LotteryThreadState[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, numSlots);
+			slots = newSlots;
+
+			int[] newFreeSlots = new int[capacity];
+			System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFree);
+			freeSlots = newFreeSlots;
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= numSlots; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].queuedTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/** The number of slots in the tree, a power of two. */
+		private int capacity = 4;
+
+		/** The Fenwick tree of ticket counts, indexed from 1. */
+		private long[] tree = new long[capacity + 1];
+
+		/** The thread in each slot, or <tt>null</tt> if the slot is free. */
+		private LotteryThreadState[] slots = new LotteryThreadState[capacity];
+
+		/** The number of slots ever used. */
+		private int numSlots = 0;
+
+		/** Freed slots below <tt>numSlots</tt>. */
+		private int[] freeSlots = new int[capacity];
+
+		private int numFree = 0;
+
+		private int numWaiting = 0;
+
+		private long totalTickets = 0;
+
+		/** The thread that last acquired this queue, if it transfers. */
+		private LotteryThreadState owner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. A thread's
+	 * effective tickets are its own tickets plus the total tickets waiting
+	 * on each transferring queue it holds, kept as a running total.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * capped at <tt>Integer.MAX_VALUE</tt>.
+		 * 
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			// also called from the superclass constructor, which is why our
+			// fields rely on their default values rather than initializers
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			transferTickets(delta);
+		}
+
+		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = (LotteryQueue) waitQueue;
+			waitingOn.add(this);
+		}
+
+		public void acquire(PriorityQueue waitQueue) {
+			((LotteryQueue) waitQueue).setOwner(this);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of this thread, and pass
+		 * the change on through the queue it waits on to that queue's holder,
+		 * and so on. Iterative, so that long chains cannot overflow the
+		 * stack, and stops if it comes back to a thread it already changed.
+		 */
+		void transferTickets(long delta) {
+			int transfer = ++transferNumber;
+
+			LotteryThreadState state = this;
+			while (delta != 0 && state != null
+					&& state.lastTransfer != transfer) {
+				state.lastTransfer = transfer;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitingOn;
+				if (queue == null)
+					break;
+
+				queue.adjust(state, delta);
+				state = (queue.transferPriority ? queue.owner : null);
+			}
+		}
+
+		/** Own tickets plus donated tickets. */
+		long effectiveTickets;
+
+		/** The tickets counted for this thread in <tt>waitingOn</tt>. */
+		long queuedTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LotteryQueue waitingOn;
+
+		/** This thread's slot in <tt>waitingOn</tt>. */
+		int slot;
+
+		/** The number of the last transfer that changed this thread. */
+		int lastTransfer;
 	}
 }
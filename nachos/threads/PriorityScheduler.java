@@ -97,6 +97,59 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test priority donation through a lock. A low priority thread holds a
+	 * lock that a high priority thread is waiting for, while a medium
+	 * priority thread is ready. The holder must run at the waiter's priority,
+	 * so it releases the lock before the medium thread gets to run.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		final StringBuffer order = new StringBuffer();
+
+		final KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				order.append("high ");
+				lock.release();
+			}
+		}).setName("high");
+
+		final KThread medium = new KThread(new Runnable() {
+			public void run() {
+				order.append("medium ");
+			}
+		}).setName("medium");
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				high.fork();
+				medium.fork();
+
+				// high runs first and blocks on the lock
+				KThread.yield();
+				order.append("low ");
+				lock.release();
+			}
+		}).setName("low");
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(high, 6);
+		ThreadedKernel.scheduler.setPriority(medium, 4);
+		ThreadedKernel.scheduler.setPriority(low, 2);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		low.join();
+		medium.join();
+		high.join();
+
+		System.out.println("Ran in order: " + order);
+		Lib.assertTrue(order.toString().equals("low high medium "),
+				" lock holder did not run at the waiter's priority.");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -125,8 +178,25 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Return the highest priority set in a bitmap of priorities.
+	 * 
+	 * @param mask a bitmap with bit <i>p</i> set for each priority <i>p</i>.
+	 * @return the highest priority in <i>mask</i>, or -1 if it is empty.
+	 */
+	static int highestPriority(int mask) {
+		return 31 - Integer.numberOfLeadingZeros(mask);
+	}
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO list per priority, linked through
+	 * their <tt>ThreadState</tt>s, and a bitmap records which lists are
+	 * nonempty, so that finding, adding and removing a thread are all O(1).
+	 * A thread whose effective priority changes while it waits moves to the
+	 * end of its new list.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +215,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setHolder(null);
+				return null;
+			}
+
+			remove(next);
+			next.waitingOn = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +236,91 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (occupied == 0)
+				return null;
+
+			return heads[highestPriority(occupied)];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (ThreadState s = heads[p]; s != null; s = s.nextWaiter)
+					System.out.print(s.thread + " ");
+			}
+		}
+
+		/**
+		 * Append a thread to the list for its effective priority.
+		 */
+		void add(ThreadState state) {
+			int p = state.effectivePriority;
+
+			state.nextWaiter = null;
+			state.prevWaiter = tails[p];
+			if (tails[p] != null)
+				tails[p].nextWaiter = state;
+			else
+				heads[p] = state;
+			tails[p] = state;
+
+			occupied |= 1 << p;
+		}
+
+		/**
+		 * Unlink a thread from the list for its effective priority.
+		 */
+		void remove(ThreadState state) {
+			int p = state.effectivePriority;
+
+			if (state.prevWaiter != null)
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+			else
+				heads[p] = state.nextWaiter;
+
+			if (state.nextWaiter != null)
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+			else
+				tails[p] = state.prevWaiter;
+
+			state.prevWaiter = state.nextWaiter = null;
+
+			if (heads[p] == null)
+				occupied &= ~(1 << p);
+		}
+
+		/**
+		 * Make a thread the holder of this queue, withdrawing the donation
+		 * to the previous holder.
+		 */
+		void setHolder(ThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (holder != null && donation >= 0)
+				holder.changeDonation(donation, -1);
+
+			holder = state;
+			donation = -1;
+			updateDonation();
+		}
+
+		/**
+		 * Bring the priority donated to the holder up to date with the
+		 * highest effective priority of the waiting threads.
+		 */
+		void updateDonation() {
+			if (!transferPriority || holder == null)
+				return;
+
+			int newDonation = highestPriority(occupied);
+			if (newDonation == donation)
+				return;
+
+			int oldDonation = donation;
+			donation = newDonation;
+			holder.changeDonation(oldDonation, newDonation);
 		}
 
 		/**
@@ -170,6 +328,21 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The first waiting thread at each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		/** The last waiting thread at each priority. */
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if a thread is waiting at priority <i>p</i>. */
+		private int occupied = 0;
+
+		/** The thread that last acquired this queue, if it transfers. */
+		private ThreadState holder = null;
+
+		/** The priority donated to <tt>holder</tt>, or -1 for none. */
+		private int donation = -1;
 	}
 
 	/**
@@ -177,6 +350,13 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached. Instead of the queues a thread holds,
+	 * it keeps a count of the donations it receives at each priority, so a
+	 * change in one donation updates it in O(1). A change is passed on to the
+	 * holder of the queue the thread waits on, and so on down the chain, only
+	 * as far as effective priorities actually change.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +387,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +401,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +417,11 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -252,7 +435,42 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.setHolder(this);
+		}
+
+		/**
+		 * Replace a donation of <i>oldPriority</i> with one of
+		 * <i>newPriority</i>. Either may be -1, for no donation.
+		 */
+		void changeDonation(int oldPriority, int newPriority) {
+			if (oldPriority >= 0 && --donations[oldPriority] == 0)
+				donated &= ~(1 << oldPriority);
+
+			if (newPriority >= 0 && donations[newPriority]++ == 0)
+				donated |= 1 << newPriority;
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the
+		 * donations, and if it changed, move the thread within the queue it
+		 * is waiting on and pass the change on to that queue's holder.
+		 */
+		private void updateEffectivePriority() {
+			int newPriority = Math.max(priority, highestPriority(donated));
+			if (newPriority == effectivePriority)
+				return;
+
+			if (waitingOn == null) {
+				effectivePriority = newPriority;
+				return;
+			}
+
+			waitingOn.remove(this);
+			effectivePriority = newPriority;
+			waitingOn.add(this);
+			waitingOn.updateDonation();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +478,20 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The number of donations received at each priority. */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if a donation of priority <i>p</i> is held. */
+		private int donated = 0;
+
+		/** The queue the associated thread is waiting on, if any. */
+		PriorityQueue waitingOn = null;
+
+		/** The neighbours of this thread in <tt>waitingOn</tt>. */
+		ThreadState prevWaiter = null, nextWaiter = null;
 	}
 }
@@ -151,4 +151,11 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Print any statistics this scheduler keeps. Called when the kernel
+	 * terminates. The default implementation prints nothing.
+	 */
+	public void print() {
+	}
 }
@@ -0,0 +1,329 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A proportional-share scheduler, in the style of stride scheduling or Linux's
+ * completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a weight, set with <tt>setPriority()</tt>, and a virtual
+ * runtime. While a thread runs, its virtual runtime advances by the ticks it
+ * uses, scaled down by its weight. Every queue is ordered by virtual runtime,
+ * and the next thread to be dequeued is the one that has had the least, so
+ * over time each thread receives CPU time in proportion to its weight. Queues
+ * are balanced trees, so every decision takes O(log n) time.
+ *
+ * <p>
+ * When a thread joins a queue, its virtual runtime is raised to at least that
+ * of the most recently dispatched thread, so that a thread cannot build up
+ * credit while asleep and then starve everyone else. Weights are not
+ * donated, so <i>transferPriority</i> is ignored.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new queue ordered by virtual runtime.
+	 *
+	 * @param transferPriority ignored. Weights are not donated.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).weight;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+
+		// charge the running thread at its old weight
+		chargeCurrentThread();
+		state.weight = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test charging and queue order with a scheduler of its own and threads
+	 * that are never forked. The current thread's scheduling state is set
+	 * aside while the test runs, so it works under any kernel scheduler.
+	 */
+	public static void selfTest() {
+		StrideScheduler scheduler = new StrideScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread current = KThread.currentThread();
+		Object kernelState = current.schedulingState;
+		current.schedulingState = null;
+
+		// time stands still with interrupts disabled, so after this charge
+		// the only elapsed ticks are the ones taken off lastCharge
+		scheduler.chargeCurrentThread();
+		scheduler.setPriority(current, priorityMaximum / 4);
+		ThreadState state = scheduler.getThreadState(current);
+
+		long vruntime = state.vruntime;
+		scheduler.lastCharge -= 100;
+		scheduler.chargeCurrentThread();
+		Lib.assertTrue(state.vruntime == vruntime + 400,
+				" 100 ticks at a quarter of the maximum weight were not "
+						+ "charged as 400.");
+
+		StrideQueue queue = (StrideQueue) scheduler.newThreadQueue(false);
+		long[] vruntimes = { 300, 100, 100 };
+		KThread[] threads = new KThread[vruntimes.length];
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("stride " + i);
+			scheduler.getThreadState(threads[i]).vruntime = vruntimes[i];
+			queue.waitForAccess(threads[i]);
+		}
+
+		Lib.assertTrue(queue.nextThread() == threads[1]
+				&& queue.nextThread() == threads[2]
+				&& queue.nextThread() == threads[0],
+				" queue is not in virtual runtime order, FIFO among ties.");
+
+		// as if the current thread had just been dispatched
+		scheduler.lastThread = null;
+		scheduler.chargeCurrentThread();
+
+		queue.waitForAccess(threads[0]);
+		Lib.assertTrue(scheduler.getThreadState(threads[0]).vruntime
+				== state.vruntime,
+				" a joining thread was not raised to the minimum.");
+		Lib.assertTrue(queue.nextThread() == threads[0]
+				&& queue.nextThread() == null);
+
+		current.schedulingState = kernelState;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The default weight for a new thread.
+	 */
+	public static final int priorityDefault = 1024;
+
+	/**
+	 * The minimum weight that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum weight that a thread can have. A thread of this weight
+	 * gains one unit of virtual runtime per tick.
+	 */
+	public static final int priorityMaximum = 1 << 20;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Charge the current thread for the ticks since the last charge.
+	 *
+	 * <p>
+	 * Every context switch goes through <tt>nextThread()</tt> on the ready
+	 * queue, which calls this method just before the switch, and no time
+	 * passes between that call and the switch. So whatever time has passed
+	 * since the last call belongs to the thread that is running now.
+	 */
+	private void chargeCurrentThread() {
+		long now = Machine.timer().getTime();
+		long elapsed = now - lastCharge;
+		lastCharge = now;
+
+		KThread thread = KThread.currentThread();
+		if (thread == null)
+			return;
+
+		ThreadState state = getThreadState(thread);
+
+		// the thread with the least virtual runtime was just dispatched
+		if (thread != lastThread) {
+			lastThread = thread;
+			minVruntime = Math.max(minVruntime, state.vruntime);
+		}
+
+		if (elapsed <= 0)
+			return;
+
+		// a queued thread's key must not change; it can only be queued here
+		// if it yielded, and then no time has passed
+		if (state.waitingOn == null)
+			state.vruntime += elapsed * priorityMaximum / state.weight;
+	}
+
+	/** The time of the last call to <tt>chargeCurrentThread()</tt>. */
+	private long lastCharge = 0;
+
+	/** The thread that was running at that time. */
+	private KThread lastThread = null;
+
+	/** The largest virtual runtime of any thread when it was dispatched. */
+	private long minVruntime = 0;
+
+	/** Numbers threads in the order they join queues, to break ties. */
+	private long enqueueCount = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> ordered by virtual runtime, with ties broken in
+	 * FIFO order.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			state.vruntime = Math.max(state.vruntime, minVruntime);
+			state.sequence = enqueueCount++;
+			state.waitingOn = this;
+
+			waitQueue.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			if (waitQueue.isEmpty())
+				return null;
+
+			ThreadState state = waitQueue.pollFirst();
+			state.waitingOn = null;
+
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Weights are not
+		 * donated, so there is nothing to record.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " (" + state.vruntime + ") ");
+			}
+		}
+
+		private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+	}
+
+	/**
+	 * The scheduling state of a thread: its weight, its virtual runtime, and
+	 * the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(ThreadState other) {
+			if (vruntime != other.vruntime)
+				return (vruntime < other.vruntime ? -1 : 1);
+
+			if (sequence != other.sequence)
+				return (sequence < other.sequence ? -1 : 1);
+
+			return 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The weight of the associated thread. */
+		protected int weight = priorityDefault;
+
+		/** The weighted ticks the associated thread has run. */
+		protected long vruntime = 0;
+
+		/** The order in which the thread joined its queue. */
+		private long sequence;
+
+		/** The queue the associated thread is waiting on, if any. */
+		private StrideQueue waitingOn = null;
+	}
+}
@@ -0,0 +1,114 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the host cost of a context switch. It forks
+ * <tt>SwitchBenchmark.threads</tt> threads that do nothing but yield to each
+ * other, and reports the wall-clock time per switch, after a warm-up round to
+ * let the JIT compile the switch path. It then measures the cost of forking
+ * and joining <tt>SwitchBenchmark.forks</tt> short-lived threads, one at a
+ * time.
+ * 
+ * <p>
+ * To run it, set <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.SwitchBenchmark</tt>. Run it once with each TCB
+ * configuration to compare them.
+ */
+public class SwitchBenchmark extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public SwitchBenchmark() {
+		super();
+	}
+
+	/**
+	 * The benchmark does not run the self tests.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run the warm-up round, then the measured rounds.
+	 */
+	public void run() {
+		int numThreads = Config.getInteger("SwitchBenchmark.threads", 2);
+		int switches = Config.getInteger("SwitchBenchmark.switches", 100000);
+		int rounds = Config.getInteger("SwitchBenchmark.rounds", 5);
+		Lib.assertTrue(numThreads > 0 && switches > 0 && rounds > 0);
+
+		round(numThreads, switches / 10);
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < rounds; i++) {
+			long nanos = round(numThreads, switches);
+			best = Math.min(best, nanos);
+
+			System.out.println("round " + i + ": " + switches + " switches, "
+					+ (nanos / switches) + " ns/switch");
+		}
+
+		System.out.println("best: " + (best / switches) + " ns/switch with "
+				+ numThreads + " threads");
+
+		int forks = Config.getInteger("SwitchBenchmark.forks", 10000);
+		Lib.assertTrue(forks >= 0);
+		if (forks > 0) {
+			long nanos = forkRound(forks);
+			System.out.println("fork: " + forks + " threads, "
+					+ (nanos / forks) + " ns/fork");
+		}
+	}
+
+	/**
+	 * Time forking and joining short-lived threads, one at a time.
+	 * 
+	 * @return the elapsed wall-clock time, in nanoseconds.
+	 */
+	private long forkRound(int forks) {
+		Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < forks; i++) {
+			KThread thread = new KThread(nothing);
+			thread.fork();
+			thread.join();
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Time one round: fork the threads and wait until each has yielded its
+	 * share of the switches.
+	 * 
+	 * @return the elapsed wall-clock time, in nanoseconds.
+	 */
+	private long round(int numThreads, int switches) {
+		final int yields = switches / numThreads;
+		KThread[] threads = new KThread[numThreads];
+
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < yields; j++)
+						KThread.yield();
+				}
+			}).setName("switch benchmark " + i);
+		}
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		return System.nanoTime() - start;
+	}
+}
@@ -52,6 +52,10 @@ public class ThreadedKernel extends Kernel {
     //Condition2.selfTest();
     //Alarm.selfTest();
     //Communicator.selfTest();
+		//PriorityScheduler.selfTest();
+		//LotteryScheduler.selfTest();
+		//StrideScheduler.selfTest();
+		//FeedbackScheduler.selfTest();
 		//if (Machine.bank() != null) {
 		//	ElevatorBank.selfTest();
 		//}
@@ -68,6 +72,8 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		scheduler.print();
+
 		Machine.halt();
 	}
 
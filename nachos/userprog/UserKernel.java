@@ -95,6 +95,12 @@ public class UserKernel extends ThreadedKernel {
      * program in it. The name of the shell program it must run is returned by
      * <tt>Machine.getShellProgramName()</tt>.
      *
+     * <p>
+     * If <tt>Kernel.saveSnapshot</tt> names a file, a machine snapshot of the
+     * shell process, loaded but not yet run, is saved to it. If
+     * <tt>Kernel.restoreSnapshot</tt> names one, the shell process is
+     * restored from it instead of loaded.
+     *
      * @see	nachos.machine.Machine#getShellProgramName
      */
     public void run() {
@@ -103,7 +109,20 @@ public class UserKernel extends ThreadedKernel {
 	UserProcess process = UserProcess.newUserProcess();
 	
 	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	String restoreSnapshot = Config.getString("Kernel.restoreSnapshot", null);
+	String saveSnapshot = Config.getString("Kernel.saveSnapshot", null);
+
+	if (restoreSnapshot != null) {
+	    Lib.assertTrue(process.restore(shellProgram, restoreSnapshot),
+			   "could not restore snapshot " + restoreSnapshot);
+	}
+	else {
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+
+	    if (saveSnapshot != null)
+		Lib.assertTrue(process.saveSnapshot(saveSnapshot),
+			       "could not save snapshot " + saveSnapshot);
+	}
 
 	KThread.currentThread().finish();
     }
@@ -77,6 +77,47 @@ public class UserProcess {
 	return true;
     }
 
+    /**
+     * Execute the specified program from a machine snapshot saved by
+     * <tt>saveSnapshot()</tt>, instead of loading it. Restores the program's
+     * registers, page table and memory, and then forks a thread to run it.
+     * The snapshot replaces all of physical memory, so no other process may
+     * be running.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	fileName	the name of the snapshot file.
+     * @return	<tt>true</tt> if the program was successfully restored.
+     */
+    public boolean restore(String name, String fileName) {
+	if (UserKernel.numRunningProcesses != 0
+	    || !restoreSnapshot(name, fileName))
+	    return false;
+
+	UserKernel.numRunningProcesses++;
+
+	new UThread(this).setName(name).fork();
+
+	return true;
+    }
+
+    /**
+     * Save a machine snapshot of this process as it is about to start, so
+     * that later runs can <tt>restore()</tt> it instead of loading the
+     * program again. Must be called after <tt>execute()</tt>, while this is
+     * the only process and before it has run. Open files and kernel threads
+     * are not part of the snapshot, so there must be none besides the ones
+     * every new process starts with.
+     *
+     * @param	fileName	the name of the snapshot file.
+     * @return	<tt>true</tt> if the snapshot was saved.
+     */
+    public boolean saveSnapshot(String fileName) {
+	initRegisters();
+	restoreState();
+
+	return Machine.saveSnapshot(fileName);
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -90,6 +131,7 @@ public class UserProcess {
      */
     public void restoreState() {
 	Machine.processor().setPageTable(pageTable);
+	Machine.processor().setProfileContext("process " + processID, coff);
     }
 
     /**
@@ -151,7 +193,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	
 	int amount = 0;
 
@@ -167,8 +209,7 @@ public class UserProcess {
 		break;
       }
 
-	    System.arraycopy(memory, ppn*pageSize + off, data, offset,
-			     transfer);
+	    processor.readMemory(ppn*pageSize + off, data, offset, transfer);
 
 	    unpinVirtualPage(vpn);
 	    
@@ -212,7 +253,7 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	
 	int amount = 0;
 
@@ -227,8 +268,7 @@ public class UserProcess {
 	    if (ppn == -1)
 		break;
 
-	    System.arraycopy(data, offset, memory, ppn*pageSize + off,
-			     transfer);
+	    processor.writeMemory(ppn*pageSize + off, data, offset, transfer);
 	    
 	    unpinVirtualPage(vpn);
 	    
@@ -352,6 +392,57 @@ public class UserProcess {
 	return true;
     }
 
+    /**
+     * Restore this process from a machine snapshot. The executable is opened
+     * but not loaded; its pages come from the snapshot, which also installs
+     * a new page table. The physical pages that table maps are taken off the
+     * free list.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	fileName	the name of the snapshot file.
+     * @return	<tt>true</tt> if the snapshot was restored.
+     */
+    private boolean restoreSnapshot(String name, String fileName) {
+	Processor processor = Machine.processor();
+	if (processor.hasTLB())
+	    return false;
+
+	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	if (executable == null)
+	    return false;
+
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    return false;
+	}
+
+	UserKernel.memoryLock.acquire();
+
+	processor.setPageTable(null);
+	if (!Machine.restoreSnapshot(fileName)) {
+	    UserKernel.memoryLock.release();
+	    coff.close();
+	    return false;
+	}
+
+	pageTable = processor.getPageTable();
+	numPages = pageTable.length;
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    UserKernel.freePages.remove(Integer.valueOf(pageTable[vpn].ppn));
+
+	UserKernel.memoryLock.release();
+
+	restoredRegisters = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    restoredRegisters[i] = processor.readRegister(i);
+
+	return true;
+    }
+
     /**
      * Allocates memory for this process, and loads the COFF sections into
      * memory. If this returns successfully, the process will definitely be
@@ -414,11 +505,20 @@ public class UserProcess {
      * program loaded into this process. Set the PC register to point at the
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
-     * and initialize all other registers to 0.
+     * and initialize all other registers to 0. A process restored from a
+     * snapshot gets the registers saved in the snapshot instead.
      */
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	if (restoredRegisters != null) {
+	    for (int i=0; i<processor.numUserRegisters; i++)
+		processor.writeRegister(i, restoredRegisters[i]);
+
+	    restoredRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -786,6 +886,7 @@ public class UserProcess {
     
     private int initialPC, initialSP;
     private int argc, argv;
+    private int[] restoredRegisters = null;
     
     private UserProcess parentProcess = null;
     protected int processID;
@@ -22,20 +22,8 @@ public class VMProcess extends UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
-    for(int i = 0; i < Machine.processor().getTLBSize(); i++)
-    {
-      
-      TranslationEntry tE = Machine.processor().readTLBEntry(i);
-      if(tE.valid)
-      {
-        pageTable[tE.vpn].dirty = tE.dirty;
-        pageTable[tE.vpn].used = tE.used;
-      }
-      tE.valid = false;
-      Machine.processor().writeTLBEntry(i, tE);
-      //savedState[i] = tE.vpn;
-    }
-
+    // entries are tagged with our ASID, so they can stay in the TLB
+    syncTLB();
 	}
 
 	/**
@@ -43,6 +31,10 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
+    Machine.processor().setASID(processID);
+    if(Machine.processor().hasPageTableWalker())
+      Machine.processor().setPageTable(pageTable);
+    Machine.processor().setProfileContext("process " + processID, coff);
     /*for(int i = 0; i < Machine.processor().getTLBSize(); i++)
     {
       
@@ -72,6 +64,7 @@ public class VMProcess extends UserProcess {
 	  for (int vpn=0; vpn<numPages; vpn++) {
 	    pageTable[vpn] = new TranslationEntry(vpn, -1,
 						  false, false, false, false);
+	    pageTable[vpn].asid = processID;
 	  }
 	
 	  UserKernel.memoryLock.release();
@@ -99,6 +92,16 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+    for(int i = 0; i < Machine.processor().getTLBSize(); i++)
+    {
+      TranslationEntry tE = Machine.processor().readTLBEntry(i);
+      if(tE.valid && tE.asid == processID)
+      {
+        tE.valid = false;
+        Machine.processor().writeTLBEntry(i, tE);
+      }
+    }
+
     for(int vpn = 0; vpn < pageTable.length; vpn++)
     {
       if(pageTable[vpn].valid)
@@ -122,6 +125,7 @@ public class VMProcess extends UserProcess {
 
 		switch (cause) {
       case Processor.exceptionTLBMiss:
+      case Processor.exceptionPageFault:
         handleTLBMiss();
         break;
 	  	default:
@@ -183,10 +187,16 @@ public class VMProcess extends UserProcess {
     {
       
       TranslationEntry tE = Machine.processor().readTLBEntry(i);
-      if(tE.valid)
+      if(!tE.valid)
+        continue;
+      // the TLB may hold entries of other processes, so write the bits back
+      // through the owner of the physical page
+      IPTEntry owner = IPT[tE.ppn];
+      if(owner != null && owner.process.processID == tE.asid &&
+        owner.tE.vpn == tE.vpn)
       {
-        pageTable[tE.vpn].dirty = tE.dirty;
-        pageTable[tE.vpn].used = tE.used;
+        owner.tE.dirty = tE.dirty;
+        owner.tE.used = tE.used;
       }
     }
   }
@@ -238,11 +248,8 @@ public class VMProcess extends UserProcess {
           {
 //            System.out.println("VPN \"" + t.vpn + "\" is NOT a COFF section");
             //System.out.println("PPN \"" + t.ppn + "\" Zero'd Out");
-            byte[] data = new byte[Processor.pageSize];
-            //writeVirtualMemory(t.vpn, data, 0, Processor.pageSize);
-            byte[] memory = Machine.processor().getMemory();
-            System.arraycopy(data, 0, memory, 
-                  t.ppn*Processor.pageSize, Processor.pageSize);
+            Machine.processor().fillMemory(t.ppn*Processor.pageSize,
+                  Processor.pageSize, (byte) 0);
           }
         }
         else //Dirty
@@ -250,10 +257,10 @@ public class VMProcess extends UserProcess {
 //          System.out.println("VPN \"" + t.vpn + "\" has been swapped out, swaping into PPN \"" + ppn + "\"");
           int spn = t.ppn;
           byte[] data = new byte[pageSize];
-          byte[] memory = Machine.processor().getMemory();
           OpenFile swap = ThreadedKernel.fileSystem.open(".Nachos.swp", false);
-          swap.read(spn * pageSize, memory, ppn * pageSize, pageSize);
+          swap.read(spn * pageSize, data, 0, pageSize);
           swap.close();
+          Machine.processor().writeMemory(ppn * pageSize, data, 0, pageSize);
           t.ppn = ppn;
           //System.out.println(spn);
           freeSwapPages.set(spn, true);
@@ -318,9 +325,10 @@ public class VMProcess extends UserProcess {
             freeSwapPages.set(spn, false);
           }
           UserKernel.freePages.add(evictedPPN);
-          byte[] memory = Machine.processor().getMemory();
-          swap.write(spn * pageSize, memory, 
-                       evictedPPN * pageSize, pageSize);
+          byte[] data = new byte[pageSize];
+          Machine.processor().readMemory(evictedPPN * pageSize, data, 0,
+                       pageSize);
+          swap.write(spn * pageSize, data, 0, pageSize);
           swap.close();
           if(evictedOwner.processID != this.processID)
           {
@@ -377,7 +385,13 @@ public class VMProcess extends UserProcess {
       }
       lock.release();
     }
-    for(int i = 0; i < Machine.processor().getTLBSize(); i++)
+    // the walker refills the TLB itself once the page is valid
+    if(Machine.processor().hasPageTableWalker())
+      return;
+
+    int set = Machine.processor().getTLBSet(vpn);
+    int ways = Machine.processor().getTLBAssociativity();
+    for(int i = set; i < set + ways; i++)
     {
       TranslationEntry tE = Machine.processor().readTLBEntry(i);
       if(!tE.valid)
@@ -389,9 +403,7 @@ public class VMProcess extends UserProcess {
       }
     }
     syncTLB();
-    int evictedEntry = (int)(Math.random() * Machine.processor().getTLBSize());
-    TranslationEntry tE = Machine.processor().readTLBEntry(evictedEntry);
-    pageTable[tE.vpn] = tE;
+    int evictedEntry = set + (int)(Math.random() * ways);
     Machine.processor().writeTLBEntry(evictedEntry, t);
     //System.out.println("Evicted TLBEntry " + evictedEntry + " randomly");
     //System.out.println("TE entered is VPN \"" + t.vpn + "\" PPN \"" + t.ppn + "\"");